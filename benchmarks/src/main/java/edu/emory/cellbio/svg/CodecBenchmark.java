@@ -0,0 +1,67 @@
+package edu.emory.cellbio.svg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base64 data URI encoding and decoding of PNG-encoded images.
+ *
+ * @author Benjamin Nanes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class CodecBenchmark {
+
+     // -- Fields --
+
+     @Param({"1", "10", "100"})
+     public int megapixels;
+
+     private DataUriCodec.Buffer data;
+     private String uri;
+     private final byte[] buf = new byte[1 << 16];
+
+     // -- Setup --
+
+     @Setup
+     public void setup() throws Exception {
+          data = new DataUriCodec.Buffer();
+          ImageIO.write(Fixtures.createImage(megapixels), "png", data);
+          uri = DataUriCodec.encode("image/png", data);
+     }
+
+     // -- Benchmarks --
+
+     @Benchmark
+     public String encode() throws IOException {
+          return DataUriCodec.encode("image/png", data);
+     }
+
+     @Benchmark
+     public long decode() throws IOException {
+          InputStream is = DataUriCodec.openPayload(uri, DataUriCodec.payloadStart(uri));
+          long n = 0;
+          int r;
+          while((r = is.read(buf)) > 0)
+               n += r;
+          return n;
+     }
+
+}
@@ -0,0 +1,60 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cropping and encoding with {@code putImgData}, including the
+ * Base64 data URI, for each output type.
+ *
+ * @author Benjamin Nanes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class EncodeBenchmark {
+
+     // -- Fields --
+
+     @Param({"1", "10", "100"})
+     public int megapixels;
+
+     @Param({"png", "jpeg", "mix", "mix-fast"})
+     public String type;
+
+     /** Crop 10% from each edge, as for a typical clip path */
+     private static final double[] CROP = {0.1, 0.1, 0.1, 0.1};
+
+     private EmbedAndCropProcessor processor;
+     private BufferedImage img;
+
+     // -- Setup --
+
+     @Setup
+     public void setup() throws Exception {
+          processor = new EmbedAndCropProcessor(EmbedAndCropOptions.parse("-t", type));
+          img = Fixtures.createImage(megapixels);
+     }
+
+     // -- Benchmarks --
+
+     @Benchmark
+     public Object putImgData() throws EmbedAndCropException {
+          return processor.putImgData(img, CROP, null);
+     }
+
+}
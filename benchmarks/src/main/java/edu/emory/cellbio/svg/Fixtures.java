@@ -0,0 +1,129 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Synthetic fixtures for the benchmarks.
+ *
+ * <p> Fixtures are written by the build (see {@code pom.xml}), and are
+ * generated on first use if they are missing, so the benchmarks can also be
+ * run from an IDE. Images have a smooth gradient with noise and a few flat
+ * areas and sharp edges, roughly like a photo with overlaid annotations,
+ * so neither encoder sees a best or worst case.
+ *
+ * @author Benjamin Nanes
+ */
+public class Fixtures {
+
+     // -- Fields --
+
+     /** Image sizes, in megapixels */
+     public static final int[] MEGAPIXELS = {1, 10, 100};
+     /** Largest image written to a file; larger images are only created in memory */
+     public static final int FILE_MEGAPIXELS_MAX = 10;
+     /** Number of images in the synthetic SVG documents */
+     public static final int[] IMAGES = {10, 1000};
+
+     private static final String DIR_PROPERTY = "svgec.fixtures";
+
+     // -- Methods --
+
+     /** @param args Output directory */
+     public static void main(String[] args) throws IOException {
+          File dir = new File(args.length > 0 ? args[0] : "target/fixtures");
+          generate(dir);
+     }
+
+     /** Get the fixture directory, generating the fixtures first if needed */
+     public static synchronized File get() throws IOException {
+          File dir = new File(System.getProperty(DIR_PROPERTY, "target/fixtures"));
+          generate(dir);
+          return dir;
+     }
+
+     /** Linked image file of the given size, up to {@link #FILE_MEGAPIXELS_MAX} */
+     public static File image(File dir, int megapixels) {
+          return new File(dir, "image-" + megapixels + "mp.png");
+     }
+
+     /** SVG document with the given number of clipped, transformed images */
+     public static File svg(File dir, int images) {
+          return new File(dir, "doc-" + images + ".svg");
+     }
+
+     /** Create an image in memory, with the same content as the image fixture files */
+     public static BufferedImage createImage(int megapixels) {
+          int w = (int)Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+          int h = (int)Math.round(megapixels * 1e6 / w);
+          BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+          Random rnd = new Random(megapixels);
+          int[] row = new int[w];
+          for(int y=0; y<h; y++) {
+               for(int x=0; x<w; x++) {
+                    int r, g, b;
+                    if(x > w * 3 / 4 && y < h / 4) { // Flat label area
+                         r = g = b = 255;
+                    } else if((x / 64 + y / 64) % 17 == 0) { // Sharp-edged blocks
+                         r = 200; g = 30; b = 30;
+                    } else {
+                         int n = rnd.nextInt(16);
+                         r = 255 * x / w / 2 + n;
+                         g = 255 * y / h / 2 + n;
+                         b = 128 + n;
+                    }
+                    row[x] = (r << 16) | (g << 8) | b;
+               }
+               img.setRGB(0, y, w, 1, row, 0, w);
+          }
+          return img;
+     }
+
+     // -- Helper methods --
+
+     private static void generate(File dir) throws IOException {
+          dir.mkdirs();
+          for(int mp : MEGAPIXELS) {
+               File f = image(dir, mp);
+               if(mp <= FILE_MEGAPIXELS_MAX && !f.exists())
+                    ImageIO.write(createImage(mp), "png", f);
+          }
+          for(int n : IMAGES) {
+               File f = svg(dir, n);
+               if(!f.exists())
+                    writeSvg(f, n, image(dir, MEGAPIXELS[0]).getName());
+          }
+     }
+
+     /** Write an SVG with {@code n} clipped images inside transformed groups */
+     private static void writeSvg(File f, int n, String href) throws IOException {
+          PrintWriter w = new PrintWriter(f, "UTF-8");
+          try {
+               w.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+               w.println("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\""
+                       + " width=\"210mm\" height=\"297mm\" viewBox=\"0 0 210 297\">");
+               w.println("<defs>");
+               for(int i=0; i<n; i++)
+                    w.println("<clipPath id=\"clip" + i + "\"><rect x=\"" + (i % 7) + "\" y=\"" + (i % 5)
+                            + "\" width=\"30\" height=\"20\" transform=\"rotate(" + (i % 3) + ")\"/></clipPath>");
+               w.println("</defs>");
+               for(int i=0; i<n; i++) {
+                    w.println("<g transform=\"translate(" + (i % 10) * 20 + "," + (i / 10 % 14) * 20
+                            + ") scale(0.5) matrix(1,0,0,1,2,3)\">");
+                    w.println("<g transform=\"rotate(" + (i % 4) + ",10,10)\">");
+                    w.println("<image id=\"img" + i + "\" xlink:href=\"" + href + "\" x=\"0\" y=\"0\""
+                            + " width=\"40\" height=\"30\" clip-path=\"url(#clip" + i + ")\"/>");
+                    w.println("</g>");
+                    w.println("</g>");
+               }
+               w.println("</svg>");
+          } finally {
+               w.close();
+          }
+     }
+
+}
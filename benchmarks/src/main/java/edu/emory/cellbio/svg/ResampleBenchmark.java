@@ -0,0 +1,63 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downsampling with {@code limitResolution}, to a quarter of the
+ * original width and height, with each resampling filter.
+ *
+ * @author Benjamin Nanes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class ResampleBenchmark {
+
+     // -- Fields --
+
+     @Param({"1", "10", "100"})
+     public int megapixels;
+
+     @Param({"bicubic", "area", "progressive", "lanczos"})
+     public String kernel;
+
+     private static final double TARGET_RES = 10;
+     private static final double MAX_RES = 12;
+
+     private EmbedAndCropProcessor processor;
+     private BufferedImage img;
+     private double[] wh;
+
+     // -- Setup --
+
+     @Setup
+     public void setup() throws Exception {
+          processor = new EmbedAndCropProcessor(EmbedAndCropOptions.parse("-t", "png", "-r", "" + TARGET_RES, "" + MAX_RES, kernel));
+          img = Fixtures.createImage(megapixels);
+          // Physical size at which the image is 4x the target resolution
+          wh = new double[] {img.getWidth() / (4 * TARGET_RES), img.getHeight() / (4 * TARGET_RES)};
+     }
+
+     // -- Benchmarks --
+
+     @Benchmark
+     public BufferedImage limitResolution() throws EmbedAndCropException {
+          return processor.limitResolution(img, wh, TARGET_RES, MAX_RES);
+     }
+
+}
@@ -0,0 +1,118 @@
+package edu.emory.cellbio.svg;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Document-level steps: parsing, clip path lookup, transforms,
+ * crop calculation, and saving.
+ *
+ * @author Benjamin Nanes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SvgBenchmark {
+
+     // -- Fields --
+
+     /** Number of images in the document */
+     @Param({"10", "1000"})
+     public int images;
+
+     private EmbedAndCropProcessor processor;
+     private File svg;
+     private File out;
+     private Document dom;
+     private DocumentIndex index;
+     private final List<Element> imgs = new ArrayList<Element>();
+     private final List<Element> clips = new ArrayList<Element>();
+
+     // -- Setup --
+
+     @Setup
+     public void setup() throws Exception {
+          File dir = Fixtures.get();
+          svg = Fixtures.svg(dir, images);
+          out = File.createTempFile("svg-benchmark", ".svg");
+
+          processor = new EmbedAndCropProcessor(EmbedAndCropOptions.parse("-t", "png"));
+          dom = processor.readSVG(svg);
+          index = new DocumentIndex(dom);
+          NodeList nl = dom.getElementsByTagName("image");
+          for(int i=0; i<nl.getLength(); i++) {
+               Element img = (Element)nl.item(i);
+               imgs.add(img);
+               clips.add(processor.getClipPath(img, index));
+          }
+     }
+
+     @TearDown
+     public void tearDown() {
+          out.delete();
+     }
+
+     // -- Benchmarks --
+
+     @Benchmark
+     public Document readSVG() throws EmbedAndCropException {
+          return processor.readSVG(svg);
+     }
+
+     @Benchmark
+     public DocumentIndex buildIndex() {
+          return new DocumentIndex(dom);
+     }
+
+     @Benchmark
+     public void getClipPath(Blackhole bh) {
+          for(Element img : imgs)
+               bh.consume(processor.getClipPath(img, index));
+     }
+
+     @Benchmark
+     public Object parseTransform() {
+          return TransformCache.parseTransform("translate(20,40) scale(0.5) matrix(1,0,0,1,2,3) rotate(2,10,10)");
+     }
+
+     /** Document-space transforms of every image, with a fresh cache as in one run */
+     @Benchmark
+     public void toDocumentSpace(Blackhole bh) {
+          TransformCache transforms = new TransformCache();
+          for(Element img : imgs)
+               bh.consume(transforms.toDocumentSpace(img));
+     }
+
+     @Benchmark
+     public void getCropFraction(Blackhole bh) throws EmbedAndCropException {
+          for(int i=0; i<imgs.size(); i++)
+               bh.consume(processor.getCropFraction(imgs.get(i), clips.get(i)));
+     }
+
+     @Benchmark
+     public void save() throws EmbedAndCropException {
+          processor.save(dom, out);
+     }
+
+}
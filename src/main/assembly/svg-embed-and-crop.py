@@ -1,5 +1,5 @@
 import inkex
-import subprocess, os.path, sys, platform
+import subprocess, os.path, sys, platform, socket
 
 try:
 	from inkex.utils import errormsg, Boolean
@@ -20,13 +20,51 @@ except ImportError:
 	print(p.communicate()[0])
 	exit()
 
+def call_server(args):
+	"""Run the extension in an already running EmbedAndCropServer.
+	Returns False if no server could be reached, it rejected the request,
+	or it didn't acknowledge the request in time, e.g. because the port
+	now belongs to another program. Once the server has acknowledged the
+	request, other failures abort the extension, since the server may
+	already have run it."""
+	server_file = os.path.join(os.path.expanduser("~"), ".svg-embed-and-crop", "server")
+	try:
+		with open(server_file) as f:
+			port, token = f.read().split()
+		s = socket.create_connection(("127.0.0.1", int(port)), timeout=2)
+	except (OSError, ValueError):
+		return False
+	try:
+		try:
+			s.sendall(("SVGEC 2 " + token + "\n").encode("utf-8"))
+			f = s.makefile("r", encoding="utf-8")
+			if f.readline(64).strip() != "READY":
+				return False
+			s.settimeout(None)
+			s.sendall(("".join(a + "\n" for a in args) + "\n").encode("utf-8"))
+		except (OSError, UnicodeDecodeError):
+			return False # The server only runs complete requests
+		try:
+			reply = f.readline().strip()
+		except OSError as e:
+			raise inkex.AbortExtension("Lost connection to the Embed and Crop server: " + str(e))
+	finally:
+		s.close()
+	if reply.startswith("ERROR"):
+		raise inkex.AbortExtension(reply[6:])
+	if reply not in ("OK", "CANCELED"):
+		raise inkex.AbortExtension("Lost connection to the Embed and Crop server")
+	return True
+
 class EmbedAndCrop(inkex.CallExtension):
 	"""Embed and Crop Images"""
 
 	def call(self, input_file, output_file):
 		cp = os.path.dirname(os.path.abspath(__file__)) + "/svg-embed-and-crop/*"
 		java = "javaw -cp \""
-		command.call('javaw', '-cp', cp, 'edu.emory.cellbio.svg.EmbedAndCropInkscapeEntry', input_file, "-o", output_file)
+		args = [os.path.abspath(input_file), "-o", os.path.abspath(output_file)]
+		if not call_server(args):
+			command.call('javaw', '-cp', cp, 'edu.emory.cellbio.svg.EmbedAndCropInkscapeEntry', *args)
 		if not os.path.exists(output_file):
 			raise inkex.AbortExtension("Plugin canceled")
 		return output_file
@@ -0,0 +1,164 @@
+package edu.emory.cellbio.svg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
+
+/**
+ * Encode and decode base64 data URIs without intermediate copies.
+ *
+ * <p> Encoding streams the image bytes through base64 into a buffer
+ * sized exactly for the finished URI, so the only full-size copy
+ * besides the image data itself is the final {@code String}.
+ * Decoding reads the payload directly out of the attribute value.
+ *
+ * @author Benjamin Nanes
+ */
+public class DataUriCodec {
+
+     /** Bytes passed to the base64 encoder at a time */
+     private static final int CHUNK = 3 * 16384;
+
+     private DataUriCodec() { }
+
+     // -- Methods --
+
+     /**
+      * Build a base64 data URI
+      * @param mime MIME type, e.g. {@code image/png}
+      * @param data Encoded image data
+      * @return {@code data:<mime>;base64,<data>}
+      */
+     public static String encode(String mime, Buffer data) throws IOException {
+          String prefix = "data:" + mime + ";base64,";
+          int n = data.size();
+          ByteArrayOutputStream uri = new ByteArrayOutputStream(prefix.length() + 4 * ((n + 2) / 3));
+          uri.write(prefix.getBytes("US-ASCII"));
+          OutputStream b64 = new Base64OutputStream(uri, true, 0, null);
+          data.writeTo(b64, CHUNK);
+          b64.close();
+          return uri.toString("US-ASCII");
+     }
+
+     /**
+      * Build a base64 data URI from the contents of a file, read through
+      * memory-mapped chunks
+      * @param mime MIME type, e.g. {@code image/png}
+      */
+     public static String encode(String mime, File f) throws IOException {
+          String prefix = "data:" + mime + ";base64,";
+          long n = f.length();
+          if(prefix.length() + 4 * ((n + 2) / 3) > Integer.MAX_VALUE - 8)
+               throw new IOException("File too large to embed: " + f.getName());
+          ByteArrayOutputStream uri = new ByteArrayOutputStream(prefix.length() + 4 * (int)((n + 2) / 3));
+          uri.write(prefix.getBytes("US-ASCII"));
+          final OutputStream b64 = new Base64OutputStream(uri, true, 0, null);
+          final byte[] buf = new byte[CHUNK];
+          MappedImageInputStream.forEachChunk(f, new MappedImageInputStream.ChunkConsumer() {
+               @Override
+               public void accept(ByteBuffer chunk) throws IOException {
+                    while(chunk.hasRemaining()) {
+                         int k = Math.min(buf.length, chunk.remaining());
+                         chunk.get(buf, 0, k);
+                         b64.write(buf, 0, k);
+                    }
+               }
+          });
+          b64.close();
+          return uri.toString("US-ASCII");
+     }
+
+     /**
+      * Find the start of the base64 payload in a data URI
+      * @return Index of the first payload character, or -1 if this is not a base64 data URI
+      */
+     public static int payloadStart(String uri) {
+          if(!uri.startsWith("data:"))
+               return -1;
+          int comma = uri.indexOf(',');
+          if(comma < 0 || !uri.regionMatches(comma - 7, ";base64", 0, 7))
+               return -1;
+          return comma + 1;
+     }
+
+     /**
+      * Open a stream of the decoded payload of a data URI
+      * @param uri The data URI
+      * @param start Index of the first payload character, from {@link #payloadStart}
+      */
+     public static InputStream openPayload(String uri, int start) {
+          return new Base64InputStream(new CharSequenceInputStream(uri, start));
+     }
+
+     /**
+      * Calculate the length of the decoded payload of a data URI without decoding it.
+      * Whitespace and padding are ignored, as when decoding.
+      * @param uri The data URI
+      * @param start Index of the first payload character, from {@link #payloadStart}
+      */
+     public static long decodedLength(String uri, int start) {
+          long n = 0;
+          for(int i=start; i<uri.length(); i++) {
+               char c = uri.charAt(i);
+               if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                       || c == '+' || c == '/' || c == '-' || c == '_')
+                    n++;
+          }
+          return n * 6 / 8;
+     }
+
+     // -- Helper classes --
+
+     /**
+      * A byte array output stream that can be written out in pieces,
+      * without copying its contents with {@link #toByteArray()}
+      */
+     public static class Buffer extends ByteArrayOutputStream {
+
+          /** Write the contents of the buffer to another stream, {@code chunk} bytes at a time */
+          public synchronized void writeTo(OutputStream out, int chunk) throws IOException {
+               for(int off=0; off<count; off+=chunk)
+                    out.write(buf, off, Math.min(chunk, count - off));
+          }
+     }
+
+     /** Read the characters of a string as bytes, without copying the string */
+     private static class CharSequenceInputStream extends InputStream {
+
+          private final CharSequence s;
+          private int pos;
+
+          CharSequenceInputStream(CharSequence s, int start) {
+               this.s = s;
+               this.pos = start;
+          }
+
+          @Override
+          public int read() {
+               return pos < s.length() ? s.charAt(pos++) & 0xff : -1;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) {
+               if(len == 0)
+                    return 0;
+               int n = Math.min(len, s.length() - pos);
+               if(n <= 0)
+                    return -1;
+               for(int i=0; i<n; i++)
+                    b[off + i] = (byte)s.charAt(pos++);
+               return n;
+          }
+
+          @Override
+          public int available() {
+               return s.length() - pos;
+          }
+     }
+
+}
@@ -0,0 +1,84 @@
+package edu.emory.cellbio.svg;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Index of the elements in an SVG document by {@code id}.
+ *
+ * <p> The index is built with a single traversal of the document, so
+ * references such as {@code clip-path="url(#clip1)"} can be resolved
+ * without scanning the document for each image. If more than one element
+ * has the same id, the first in document order is used. Clip paths are
+ * also indexed on their own, so a clip path is found even if an element
+ * of another kind with the same id comes first.
+ *
+ * @author Benjamin Nanes
+ */
+public class DocumentIndex {
+
+     // -- Fields --
+
+     private final Map<String, Element> ids = new HashMap<String, Element>();
+     private final Map<String, Element> clipPaths = new HashMap<String, Element>();
+
+     // -- Constructors --
+
+     public DocumentIndex(Document dom) {
+          Node n = dom.getDocumentElement();
+          while(n != null) {
+               if(n.getNodeType() == Node.ELEMENT_NODE) {
+                    Element e = (Element)n;
+                    String id = e.getAttribute("id");
+                    if(!id.isEmpty() && !ids.containsKey(id))
+                         ids.put(id, e);
+                    if(!id.isEmpty() && e.getTagName().equals("clipPath") && !clipPaths.containsKey(id))
+                         clipPaths.put(id, e);
+               }
+               // Depth-first, without recursion
+               if(n.getFirstChild() != null)
+                    n = n.getFirstChild();
+               else {
+                    while(n != null && n.getNextSibling() == null)
+                         n = n.getParentNode();
+                    if(n != null)
+                         n = n.getNextSibling();
+               }
+          }
+     }
+
+     // -- Methods --
+
+     /** Get the element with the given id, or {@code null} if there is none */
+     public Element get(String id) {
+          return ids.get(id);
+     }
+
+     /** Get the {@code clipPath} element with the given id, or {@code null} if there is none */
+     public Element getClipPath(String id) {
+          return clipPaths.get(id);
+     }
+
+     /**
+      * Extract the id from a reference such as {@code url(#id)} or {@code #id}
+      * @return The id, or {@code null} if {@code ref} is empty
+      */
+     public static String referencedId(String ref) {
+          if(ref == null)
+               return null;
+          ref = ref.trim();
+          if(ref.isEmpty())
+               return null;
+          int a = ref.indexOf("#");
+          int b = ref.indexOf(")");
+          if(a >= 0 && b > a)
+               return ref.substring(a + 1, b).trim();
+          if(a >= 0)
+               return ref.substring(a + 1).trim();
+          return ref;
+     }
+
+}
@@ -0,0 +1,259 @@
+package edu.emory.cellbio.svg;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Batch entry point: embed and crop images in many SVG files in one JVM.
+ *
+ * <p> Files are processed in parallel by a single
+ * {@link EmbedAndCropProcessor}, so image readers and writers, helper thread pools,
+ * and the encoded image cache are shared across files. A result line is
+ * printed for each file, and the exit code is non-zero if any file fails.
+ *
+ * @author Benjamin Nanes
+ */
+public class EmbedAndCropBatch {
+
+     // -- Fields --
+
+     private final List<File[]> files = new ArrayList<File[]>();
+     private final List<String> options = new ArrayList<String>();
+     private File outDir = null;
+     private int parallel = Runtime.getRuntime().availableProcessors();
+
+     // -- Methods --
+
+     /**
+      * @param args <b>Command line arguments</b>
+      *   <br>
+      *   <code> &lt;<em>input</em>&gt;... | -f &lt;<em>manifest</em>&gt;
+      *          [-O &lt;<em>output dir.</em>&gt;]
+      *          [-j &lt;<em>files</em>&gt;]
+      *          [&lt;<em>options</em>&gt;]
+      *   </code>
+      *   <ul>
+      *   <li>  <code>&lt;<em>input</em>&gt; </code>
+      *         An SVG file, a directory (all <code>.svg</code> files in it and
+      *         its subdirectories), or a glob pattern such as
+      *         <code>figures/*.svg</code>. Results are written to the output
+      *         directory, keeping paths relative to the directory or the
+      *         non-wildcard part of the pattern. Inputs that would be
+      *         written to the same output file are an error.
+      *   <li>  <code>-f &lt;<em>manifest</em>&gt; </code>
+      *         A text file listing one input and output path per line,
+      *         separated by a tab. Blank lines and lines starting with
+      *         <code>#</code> are ignored.
+      *   <li>  <code>-O &lt;<em>output dir.</em>&gt; </code>
+      *         Directory for results of inputs not listed in a manifest.
+      *   <li>  <code>-j &lt;<em>files</em>&gt; </code>
+      *         Number of files to process at once. Default is one per
+      *         available processor.
+      *   <li>  <code>&lt;<em>options</em>&gt; </code>
+      *         Processing options, as for {@link EmbedAndCrop#runInkscapeExtension},
+      *         following the inputs. The image type defaults to <code>png</code>;
+      *         no dialogs are shown.
+      *   </ul>
+      *   Example:
+      *   <br> <code> figures/ -O embedded/ -t mix -r 11.811 -c .cache </code>
+      */
+     public static void main(String[] args) {
+          EmbedAndCropBatch batch = new EmbedAndCropBatch();
+          EmbedAndCropProcessor processor = null;
+          try {
+               batch.parseArgs(args);
+               processor = new EmbedAndCropProcessor(
+                       EmbedAndCropOptions.parse(batch.options.toArray(new String[0])));
+          } catch(EmbedAndCropException e) {
+               System.err.println(e.getMessage());
+               System.exit(2);
+          }
+          System.exit(batch.run(processor) == 0 ? 0 : 1);
+     }
+
+     /**
+      * Process all files, printing a result line for each
+      * @return The number of files that failed
+      */
+     public int run(final EmbedAndCropProcessor processor) {
+          ExecutorService pool = Executors.newFixedThreadPool(Math.max(Math.min(parallel, files.size()), 1));
+          List<Future<String>> results = new ArrayList<Future<String>>();
+          for(final File[] io : files) {
+               results.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                         long t = System.nanoTime();
+                         processor.process(io[0], io[1]);
+                         return String.format("%1$.1f s", (System.nanoTime() - t) / 1e9);
+                    }
+               }));
+          }
+          pool.shutdown();
+          int failed = 0;
+          for(int i=0; i<files.size(); i++) {
+               File[] io = files.get(i);
+               try {
+                    String time = results.get(i).get();
+                    System.out.println("OK    " + io[0].getPath() + " -> " + io[1].getPath() + " (" + time + ")");
+               } catch(ExecutionException e) {
+                    failed++;
+                    System.out.println("FAIL  " + io[0].getPath() + ": " + e.getCause().getMessage());
+               } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed++;
+                    System.out.println("FAIL  " + io[0].getPath() + ": interrupted");
+               }
+          }
+          System.out.println((files.size() - failed) + " of " + files.size() + " files processed, "
+                  + failed + " failed");
+          return failed;
+     }
+
+     // -- Helper methods --
+
+     private void parseArgs(String[] args) throws EmbedAndCropException {
+          List<String> inputs = new ArrayList<String>();
+          for(int i=0; i<args.length; i++) {
+               String token = args[i].trim();
+               String next = args.length > i+1 ? args[i+1] : null;
+               if(token.equals("-f") && next != null) {
+                    readManifest(new File(next));
+                    i++;
+               }
+               else if(token.equals("-O") && next != null) {
+                    outDir = new File(next);
+                    i++;
+               }
+               else if(token.equals("-j") && next != null) {
+                    try {
+                         parallel = Integer.parseInt(next.trim());
+                    } catch(NumberFormatException e) {
+                         throw new EmbedAndCropException("Invalid value for -j: " + next);
+                    }
+                    i++;
+               }
+               else if(token.startsWith("-") || !options.isEmpty())
+                    options.add(args[i]);
+               else
+                    inputs.add(token);
+          }
+          if(!inputs.isEmpty() && outDir == null)
+               throw new EmbedAndCropException("An output directory (-O) is needed for input " + inputs.get(0));
+          for(String in : inputs)
+               addInput(in);
+          if(files.isEmpty())
+               throw new EmbedAndCropException("No input files");
+          checkOutputs();
+     }
+
+     /**
+      * Make sure no two inputs are written to the same output file, e.g.
+      * files with the same name from different directories under {@code -O}
+      */
+     private void checkOutputs() throws EmbedAndCropException {
+          Map<Path, File> written = new HashMap<Path, File>();
+          for(File[] io : files) {
+               File prev = written.put(io[1].toPath().toAbsolutePath().normalize(), io[0]);
+               if(prev != null)
+                    throw new EmbedAndCropException("Inputs " + prev.getPath() + " and " + io[0].getPath()
+                            + " would both be written to " + io[1].getPath());
+          }
+     }
+
+     /** Add an input file, directory, or glob pattern */
+     private void addInput(String in) throws EmbedAndCropException {
+          File f = new File(in);
+          if(f.isFile()) {
+               files.add(new File[] {f, new File(outDir, f.getName())});
+               return;
+          }
+          PathMatcher pm = null;
+          if(f.isDirectory()) {
+               pm = FileSystems.getDefault().getPathMatcher("glob:**.svg");
+          } else if(in.contains("*") || in.contains("?") || in.contains("[") || in.contains("{")) {
+               // Walk from the longest leading path without wildcards
+               String glob = in.replace(File.separatorChar, '/');
+               int wild = glob.length();
+               for(char c : new char[] {'*', '?', '[', '{'})
+                    if(glob.indexOf(c) >= 0)
+                         wild = Math.min(wild, glob.indexOf(c));
+               int slash = glob.lastIndexOf('/', wild);
+               f = new File(slash < 0 ? "." : (slash == 0 ? "/" : glob.substring(0, slash)));
+               pm = FileSystems.getDefault().getPathMatcher("glob:" + glob.substring(slash + 1));
+          }
+          if(pm == null || !f.isDirectory())
+               throw new EmbedAndCropException("Can't find input: " + in);
+          int before = files.size();
+          addMatches(f, f.toPath(), pm);
+          if(files.size() == before)
+               System.err.println("No SVG files found for " + in);
+     }
+
+     /** Add all files below {@code dir} whose path relative to {@code base} matches */
+     private void addMatches(File dir, Path base, PathMatcher pm) {
+          File[] list = dir.listFiles();
+          if(list == null)
+               return;
+          Arrays.sort(list);
+          for(File f : list) {
+               if(f.isDirectory()) {
+                    addMatches(f, base, pm);
+                    continue;
+               }
+               Path rel = base.relativize(f.toPath());
+               if(pm.matches(rel))
+                    files.add(new File[] {f, new File(outDir, rel.toString())});
+          }
+     }
+
+     /** Add the input and output pairs listed in a manifest file */
+     private void readManifest(File m) throws EmbedAndCropException {
+          BufferedReader r = null;
+          try {
+               r = new BufferedReader(new InputStreamReader(new FileInputStream(m), "UTF-8"));
+               String line;
+               int n = 0;
+               while((line = r.readLine()) != null) {
+                    n++;
+                    if(line.trim().isEmpty() || line.trim().startsWith("#"))
+                         continue;
+                    String[] io = line.split("\t");
+                    if(io.length != 2)
+                         throw new EmbedAndCropException("Manifest line " + n
+                                 + " should be an input and output path separated by a tab");
+                    File base = m.getAbsoluteFile().getParentFile();
+                    files.add(new File[] {resolve(base, io[0].trim()), resolve(base, io[1].trim())});
+               }
+          } catch(IOException e) {
+               throw new EmbedAndCropException("Can't read manifest: " + e.getMessage());
+          } finally {
+               if(r != null) {
+                    try { r.close(); }
+                    catch(IOException e) { }
+               }
+          }
+     }
+
+     /** Resolve a manifest path relative to the manifest's directory */
+     private static File resolve(File base, String path) {
+          File f = new File(path);
+          return f.isAbsolute() ? f : new File(base, path);
+     }
+
+}
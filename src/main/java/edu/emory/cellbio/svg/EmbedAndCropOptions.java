@@ -0,0 +1,427 @@
+package edu.emory.cellbio.svg;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Processing options for {@link EmbedAndCropProcessor}.
+ *
+ * <p> Options are immutable, so they can be shared by any number of
+ * processors and threads. They are created with a {@link Builder}, either
+ * value by value or from the same flags as the command line:
+ * <pre>
+ * EmbedAndCropOptions opts = EmbedAndCropOptions.parse("-t", "mix", "-r", "11.811");
+ * </pre>
+ *
+ * @author Benjamin Nanes
+ */
+public final class EmbedAndCropOptions {
+
+     // -- Fields --
+
+     /** Supported image output types */
+     public static final String[] IMAGE_TYPES = {"png", "jpeg", "mix", "mix-fast"};
+     /** Default size limit of the encoded image cache (bytes) */
+     public static final long CACHE_SIZE = 1024L * 1024 * 1024;
+
+     private final String imageType;
+     private final float quality;
+     private final boolean doResample;
+     private final double targetRes;
+     private final double maxRes;
+     private final String resampleKernel;
+     private final int pngLevel;
+     private final String pngFilter;
+     private final long embeddedImageSizeMin;
+     private final int threads;
+     private final boolean lowMemory;
+     private final File cacheDir;
+     private final long cacheSize;
+     private final boolean shareImageData;
+     private final File metricsReport;
+
+     // -- Constructors --
+
+     private EmbedAndCropOptions(Builder b) {
+          imageType = b.imageType;
+          quality = b.quality;
+          doResample = b.doResample;
+          targetRes = b.targetRes;
+          maxRes = b.maxRes;
+          resampleKernel = b.resampleKernel;
+          pngLevel = b.pngLevel;
+          pngFilter = b.pngFilter;
+          embeddedImageSizeMin = b.embeddedImageSizeMin;
+          threads = b.threads;
+          lowMemory = b.lowMemory;
+          cacheDir = b.cacheDir;
+          cacheSize = b.cacheSize;
+          shareImageData = b.shareImageData;
+          metricsReport = b.metricsReport;
+     }
+
+     // -- Methods --
+
+     /**
+      * Create options from command line flags, as described in
+      * {@link EmbedAndCrop#runInkscapeExtension}, other than the input and output.
+      * The image type is {@code png} unless set with {@code -t}.
+      * @throws EmbedAndCropException A flag is not recognized or invalid
+      */
+     public static EmbedAndCropOptions parse(String... flags) throws EmbedAndCropException {
+          return new Builder().setFlags(flags).build();
+     }
+
+     /** A builder starting from these options */
+     public Builder toBuilder() {
+          return new Builder(this);
+     }
+
+     /** Image type: {@code png}, {@code jpeg}, {@code mix}, or {@code mix-fast} */
+     public String getImageType() { return imageType; }
+
+     /** Jpeg compression quality, 0 to 1 */
+     public float getQuality() { return quality; }
+
+     /** Whether images above the max. resolution are downsampled */
+     public boolean getDoResample() { return doResample; }
+
+     /** Resolution to downsample to (pixels per mm) */
+     public double getTargetRes() { return targetRes; }
+
+     /** Resolution above which images are downsampled (pixels per mm) */
+     public double getMaxRes() { return maxRes; }
+
+     /** Resampling filter, one of {@link Resampler#KERNELS} */
+     public String getResampleKernel() { return resampleKernel; }
+
+     /**
+      * PNG deflate level, 0 to 9, or -1 to encode PNG images
+      * with the JDK's ImageIO writer
+      */
+     public int getPngLevel() { return pngLevel; }
+
+     /** PNG row filter, one of {@link PngEncoder#FILTERS} */
+     public String getPngFilter() { return pngFilter; }
+
+     /** Min. size of embedded images to process (bytes), or -1 to skip all */
+     public long getEmbeddedImageSizeMin() { return embeddedImageSizeMin; }
+
+     /** Worker threads per document; 1 processes images serially */
+     public int getThreads() { return threads; }
+
+     /** Whether documents are rewritten as a stream, rather than through a DOM */
+     public boolean getLowMemory() { return lowMemory; }
+
+     /** Encoded image cache directory, or {@code null} if caching is disabled */
+     public File getCacheDir() { return cacheDir; }
+
+     /** Size limit of the encoded image cache (bytes) */
+     public long getCacheSize() { return cacheSize; }
+
+     /** Whether repeated image data is written once and shared */
+     public boolean getShareImageData() { return shareImageData; }
+
+     /** Metrics report file, or {@code null} if metrics are disabled */
+     public File getMetricsReport() { return metricsReport; }
+
+     // -- Helper classes --
+
+     /**
+      * Builder for {@link EmbedAndCropOptions}. Not thread-safe;
+      * the options it builds are.
+      */
+     public static class Builder {
+
+          private String imageType = "png";
+          private boolean imageTypeSet = false;
+          private float quality = 0.8f;
+          private boolean doResample = false;
+          private double targetRes = 11.811; // px/mm (default is ~300dpi)
+          private double maxRes = 15.748; // px/mm (default is ~400dpi)
+          private String resampleKernel = "bicubic";
+          private int pngLevel = -1;
+          private String pngFilter = "adaptive";
+          private long embeddedImageSizeMin = -1;
+          private int threads = 1;
+          private boolean lowMemory = false;
+          private File cacheDir = null;
+          private long cacheSize = CACHE_SIZE;
+          private boolean shareImageData = false;
+          private File metricsReport = null;
+
+          public Builder() { }
+
+          private Builder(EmbedAndCropOptions o) {
+               imageType = o.imageType;
+               imageTypeSet = true;
+               quality = o.quality;
+               doResample = o.doResample;
+               targetRes = o.targetRes;
+               maxRes = o.maxRes;
+               resampleKernel = o.resampleKernel;
+               pngLevel = o.pngLevel;
+               pngFilter = o.pngFilter;
+               embeddedImageSizeMin = o.embeddedImageSizeMin;
+               threads = o.threads;
+               lowMemory = o.lowMemory;
+               cacheDir = o.cacheDir;
+               cacheSize = o.cacheSize;
+               shareImageData = o.shareImageData;
+               metricsReport = o.metricsReport;
+          }
+
+          /**
+           * Check the options and build them
+           * @throws EmbedAndCropException An option is invalid
+           */
+          public EmbedAndCropOptions build() throws EmbedAndCropException {
+               if(!Arrays.asList(IMAGE_TYPES).contains(imageType))
+                    throw new EmbedAndCropException("Unsupported output type: " + imageType);
+               if(!Resampler.isKernel(resampleKernel))
+                    throw new EmbedAndCropException("Unknown resampling filter: " + resampleKernel);
+               if(pngLevel < -1 || pngLevel > 9)
+                    throw new EmbedAndCropException("Invalid PNG compression level: " + pngLevel);
+               if(!PngEncoder.isFilter(pngFilter))
+                    throw new EmbedAndCropException("Unknown PNG filter: " + pngFilter);
+               return new EmbedAndCropOptions(this);
+          }
+
+          /**
+           * Set options from command line flags. Equivalent to
+           * {@link EmbedAndCropOptions#parse}.
+           * @throws EmbedAndCropException A flag is not recognized
+           */
+          public Builder setFlags(String... flags) throws EmbedAndCropException {
+               for(int i=0; i<flags.length; i++) {
+                    if(flags[i].trim().isEmpty())
+                         continue;
+                    int last = parseFlag(flags, i);
+                    if(last < 0)
+                         throw new EmbedAndCropException("Unknown option: " + flags[i]);
+                    i = last;
+               }
+               return this;
+          }
+
+          /**
+           * Parse a processing option flag and its values
+           * @param i Index of the flag in {@code args}
+           * @return Index of the last token used by the option,
+           *     or -1 if {@code args[i]} is not a processing option
+           * @throws EmbedAndCropException The option's value is invalid
+           */
+          public int parseFlag(String[] args, int i) throws EmbedAndCropException {
+               final String token = args[i].trim();
+               final String next = args.length > i+1 ? args[i+1] : null;
+               final String next2 = args.length > i+2 ? args[i+2] : null;
+               if(token.equals("-t") && next != null) {
+                    setImageType(next);
+                    i++;
+               }
+               else if(token.equals("-q") && next != null) {
+                    if(!imageTypeSet)
+                         throw new EmbedAndCropException
+                              ("Can't set quality without image type");
+                    quality = (float)parseNumber(token, next);
+                    i++;
+               }
+               else if(token.equals("-r")) {
+                   if(next != null && !Resampler.isKernel(next)) {
+                      targetRes = parseNumber(token, next);
+                      i++;
+                      if(next2 != null && !next2.startsWith("-") && !Resampler.isKernel(next2)) {
+                          maxRes = parseNumber(token, next2);
+                          i++;
+                      } else {
+                          maxRes = 4/3 * targetRes;
+                      }
+                   }
+                   if(args.length > i+1 && Resampler.isKernel(args[i+1])) {
+                      resampleKernel = args[i+1];
+                      i++;
+                   }
+                   doResample = true;
+               }
+               else if(token.equals("-z") && next != null) {
+                   pngLevel = parseInt(token, next);
+                   if(pngLevel < 0 || pngLevel > 9)
+                       throw new EmbedAndCropException("Invalid value for " + token + ": " + next);
+                   i++;
+                   if(next2 != null && PngEncoder.isFilter(next2)) {
+                       pngFilter = next2;
+                       i++;
+                   }
+               }
+               else if(token.equals("-e") && next != null) {
+                   embeddedImageSizeMin = parseSize(token, next);
+                   i++;
+               }
+               else if(token.equals("-l"))
+                    lowMemory = true;
+               else if(token.equals("-d"))
+                    shareImageData = true;
+               else if(token.equals("-c") && next != null) {
+                   long size = CACHE_SIZE;
+                   if(next2 != null && !next2.startsWith("-")) {
+                       size = parseSize(token, next2);
+                       i++;
+                   }
+                   setCache(new File(next), size);
+                   i++;
+               }
+               else if(token.equals("-m") && next != null) {
+                   metricsReport = new File(next);
+                   i++;
+               }
+               else if(token.equals("-p")) {
+                   if(next != null && next.matches("\\d+")) {
+                       threads = parseInt(token, next);
+                       i++;
+                   } else {
+                       threads = Runtime.getRuntime().availableProcessors();
+                   }
+               }
+               else
+                    return -1;
+               return i;
+          }
+
+          /** Whether the image type has been set, rather than left at the default */
+          public boolean hasImageType() { return imageTypeSet; }
+
+          public Builder setImageType(String type) {
+               imageType = type;
+               imageTypeSet = true;
+               return this;
+          }
+
+          public Builder setQuality(float quality) {
+               this.quality = quality;
+               return this;
+          }
+
+          public Builder setDoResample(boolean doResample) {
+               this.doResample = doResample;
+               return this;
+          }
+
+          public Builder setTargetRes(double targetRes) {
+               this.targetRes = targetRes;
+               return this;
+          }
+
+          public Builder setMaxRes(double maxRes) {
+               this.maxRes = maxRes;
+               return this;
+          }
+
+          public Builder setResampleKernel(String kernel) {
+               resampleKernel = kernel;
+               return this;
+          }
+
+          /** @param level 0 to 9, or -1 for the JDK's ImageIO writer */
+          public Builder setPngLevel(int level) {
+               pngLevel = level;
+               return this;
+          }
+
+          public Builder setPngFilter(String filter) {
+               pngFilter = filter;
+               return this;
+          }
+
+          public Builder setEmbeddedImageSizeMin(long bytes) {
+               embeddedImageSizeMin = bytes;
+               return this;
+          }
+
+          /** Values less than 2 process images serially on the calling thread */
+          public Builder setThreads(int threads) {
+               this.threads = threads;
+               return this;
+          }
+
+          public Builder setLowMemory(boolean lowMemory) {
+               this.lowMemory = lowMemory;
+               return this;
+          }
+
+          /**
+           * @param dir Cache directory, or {@code null} to disable caching
+           * @param maxSize Size limit of the cache (bytes)
+           */
+          public Builder setCache(File dir, long maxSize) {
+               cacheDir = dir;
+               cacheSize = maxSize;
+               return this;
+          }
+
+          public Builder setShareImageData(boolean share) {
+               shareImageData = share;
+               return this;
+          }
+
+          /** @param report Report file, or {@code null} to disable metrics */
+          public Builder setMetricsReport(File report) {
+               metricsReport = report;
+               return this;
+          }
+
+          /** Parse the numeric value of an option */
+          private static double parseNumber(String flag, String value) throws EmbedAndCropException {
+              try {
+                  return Double.parseDouble(value.trim());
+              } catch(NumberFormatException e) {
+                  throw new EmbedAndCropException("Invalid value for " + flag + ": " + value);
+              }
+          }
+
+          /** Parse the integer value of an option */
+          private static int parseInt(String flag, String value) throws EmbedAndCropException {
+              try {
+                  return Integer.parseInt(value.trim());
+              } catch(NumberFormatException e) {
+                  throw new EmbedAndCropException("Invalid value for " + flag + ": " + value);
+              }
+          }
+
+          /**
+           * Turn a file size string into the number of bytes
+           * @param flag The option the size is given for
+           * @param s
+           * @return
+           * @throws EmbedAndCropException The size or its unit is invalid
+           */
+          private static long parseSize(String flag, String s) throws EmbedAndCropException {
+              Double value;
+              try {
+                  value = Double.valueOf(s.replaceAll("\\D", "").trim());
+              } catch(NumberFormatException e) {
+                  throw new EmbedAndCropException("Invalid size for " + flag + ": " + s);
+              }
+              String unit = s.replaceAll("\\d", "").trim().toUpperCase();
+              long multiplier;
+              switch (unit) {
+                  case "B":
+                      multiplier = 1;
+                      break;
+                  case "KB":
+                      multiplier = 1024;
+                      break;
+                  case "MB":
+                      multiplier = 1024 * 1024;
+                      break;
+                  case "GB":
+                      multiplier = 1024 * 1024 * 1024;
+                      break;
+                  // Add more cases for other units if needed
+                  default:
+                      throw new EmbedAndCropException("Invalid size unit for " + flag + ": " + s);
+              }
+              return value.longValue() * multiplier;
+          }
+     }
+
+}
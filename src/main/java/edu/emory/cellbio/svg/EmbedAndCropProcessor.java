@@ -0,0 +1,1804 @@
+package edu.emory.cellbio.svg;
+
+import ij.IJ;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Embeds and crops the linked images in SVG documents.
+ *
+ * <p> This is the processing behind the Inkscape extension
+ * ({@link EmbedAndCrop}), for use from other programs. Options are fixed
+ * when the processor is created and it keeps no per-document state, so
+ * one processor can process many documents at once on different threads.
+ * It never shows dialogs; problems are reported as exceptions.
+ * <pre>
+ * EmbedAndCropProcessor p = new EmbedAndCropProcessor(EmbedAndCropOptions.parse("-t", "mix"));
+ * p.process(Paths.get("figure.svg"), Paths.get("figure-embedded.svg"));
+ * </pre>
+ *
+ * @author Benjamin Nanes
+ */
+public class EmbedAndCropProcessor 
+{
+     
+     // -- Fields --
+     
+     private final EmbedAndCropOptions options;
+     private final String imgFileType;
+     private final float compQual;
+     private final boolean doResampling;
+     private final double targetRes; // px/mm
+     private final double maxRes; // px/mm
+     private final String resampleKernel; // Resampling filter, one of Resampler.KERNELS
+     private final int pngLevel; // PNG deflate level, or -1 to use the ImageIO writer
+     private final String pngFilter; // PNG row filter, one of PngEncoder.FILTERS
+     private final long embeddedImageSizeMin; // Min. size of embedded image to process (bytes), or -1 to skip all.
+     private final int threads; // Worker threads for image processing; 1 processes images serially
+     private final boolean streaming; // Rewrite the SVG as a stream of XML events, rather than through a DOM
+     private final EncodeCache cache; // Encoded images from previous runs, or null to disable caching
+     private final boolean shareImageData; // Write each repeated image once, in defs, referenced by use elements
+     private final Metrics metrics; // Report of per-stage timing and memory use, or null to disable
+     
+     private final boolean VERBOSE = false;
+     
+     // Parameters for the mix-fast format estimate
+     private static final int FEW_COLORS = 256; // Images with this many colors or fewer are encoded as PNG...
+     private static final double MIN_FLAT_FRACTION = 0.5; // ...if at least this fraction of sampled pixels match their neighbor
+     private static final int COLOR_SAMPLES = 65536; // Pixels sampled when counting colors
+     private static final int MOSAIC_TILES = 4; // Tiles sampled along each axis
+     private static final int MOSAIC_TILE = 128; // Sampled tile edge length (px)
+     private static final int JPEG_MAX_SIZE = 65500; // Largest width or height the Jpeg writer accepts (px)
+     
+     /** Margin kept around a cropped region while resampling (output pixels) */
+     private static final double RESAMPLE_MARGIN = 4;
+     /** Minimum size of a subsampled decode, as a multiple of the resampled size */
+     private static final double SUBSAMPLE_HEADROOM = 2;
+     /** Decoded regions with more pixels than this are processed in strips, if the format allows */
+     private static final long STRIP_PIXELS_MIN = 1L << 25;
+     
+     /** Helper threads for encoders that run alongside an image job */
+     private static final ExecutorService ENCODERS = Executors.newCachedThreadPool(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "svg-embed-and-crop-encoder");
+               t.setDaemon(true);
+               return t;
+          }
+     });
+     
+     // -- Constructors --
+     
+     /**
+      * @param options Processing options
+      * @throws EmbedAndCropException The cache directory can't be used
+      */
+     public EmbedAndCropProcessor(EmbedAndCropOptions options) throws EmbedAndCropException {
+          this.options = options;
+          imgFileType = options.getImageType();
+          compQual = options.getQuality();
+          doResampling = options.getDoResample();
+          targetRes = options.getTargetRes();
+          maxRes = options.getMaxRes();
+          resampleKernel = options.getResampleKernel();
+          pngLevel = options.getPngLevel();
+          pngFilter = options.getPngFilter();
+          embeddedImageSizeMin = options.getEmbeddedImageSizeMin();
+          threads = options.getThreads();
+          streaming = options.getLowMemory();
+          shareImageData = options.getShareImageData();
+          cache = options.getCacheDir() == null ? null
+                  : new EncodeCache(options.getCacheDir(), options.getCacheSize());
+          metrics = options.getMetricsReport() == null ? null : new Metrics(options.getMetricsReport());
+     }
+     
+     // -- Methods --
+     
+     /** The options this processor was created with */
+     public EmbedAndCropOptions getOptions() {
+          return options;
+     }
+     
+     /**
+      * Embed and crop the images in an SVG file
+      * <p> The result is written to a temporary file next to the output,
+      * which replaces the output only once it is complete. If processing
+      * fails, an existing output file is left as it was, and the output
+      * may be the input itself.
+      * @param input The SVG file; linked images are relative to its directory
+      * @param output Where to save the result, or {@code null}
+      *     for the standard output stream
+      */
+     public void process(final File input, final File output) throws EmbedAndCropException {
+          measure(input.getPath(), input.length(), output, new DocumentTask() {
+               @Override
+               void run() throws EmbedAndCropException {
+                    if(output == null) {
+                         rewrite(input, input.getParent(), System.out);
+                         return;
+                    }
+                    File target = output.getAbsoluteFile();
+                    try {
+                         if(Files.isSymbolicLink(target.toPath()))
+                              target = target.toPath().toRealPath().toFile();
+                    } catch(IOException e) {
+                         throw new EmbedAndCropException("Can't write file: " + output.getPath());
+                    }
+                    target.getParentFile().mkdirs();
+                    File tmp = null;
+                    OutputStream os = null;
+                    try {
+                         tmp = File.createTempFile("." + target.getName(), ".tmp", target.getParentFile());
+                         os = new BufferedOutputStream(new FileOutputStream(tmp));
+                         rewrite(input, input.getParent(), os);
+                         os.close();
+                         os = null;
+                         copyPermissions(target, tmp);
+                         Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                         tmp = null;
+                    } catch(IOException e) {
+                         throw new EmbedAndCropException("Can't write file: " + output.getPath());
+                    } finally {
+                         if(os != null) {
+                              try { os.close(); }
+                              catch(IOException e) { } // Already failing
+                         }
+                         if(tmp != null)
+                              tmp.delete();
+                    }
+               }
+          });
+     }
+     
+     /**
+      * Embed and crop the images in an SVG file
+      * @param input The SVG file; linked images are relative to its directory
+      * @param output Where to save the result
+      */
+     public void process(Path input, Path output) throws EmbedAndCropException {
+          process(input.toFile(), output.toFile());
+     }
+     
+     /**
+      * Embed and crop the images in an SVG document read from a stream.
+      * In low-memory mode the input is first copied to a temporary file,
+      * since it has to be read twice.
+      * @param input The SVG document; not closed
+      * @param output Destination for the result; flushed, but not closed
+      * @param baseDir Directory that linked images are relative to
+      */
+     public void process(final InputStream input, final OutputStream output, final Path baseDir)
+             throws EmbedAndCropException {
+          measure("(stream)", -1, null, new DocumentTask() {
+               @Override
+               void run() throws EmbedAndCropException {
+                    String basePath = baseDir == null ? null : baseDir.toString();
+                    if(!streaming) {
+                         long[] m = Metrics.mark();
+                         Document dom = readSVG(input);
+                         Metrics.add(Metrics.PARSE, m);
+                         processDocument(dom, basePath);
+                         m = Metrics.mark();
+                         SVGToStream(dom, output);
+                         Metrics.add(Metrics.SERIALIZE, m);
+                         return;
+                    }
+                    File tmp = null;
+                    try {
+                         tmp = File.createTempFile("svg-embed-and-crop", ".svg");
+                         Files.copy(input, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                         rewrite(tmp, basePath, output);
+                    } catch(IOException e) {
+                         throw new EmbedAndCropException("Can't read input: " + e.getMessage());
+                    } finally {
+                         if(tmp != null)
+                              tmp.delete();
+                    }
+               }
+          });
+     }
+     
+     /**
+      * Embed and crop the images in an SVG DOM, in place.
+      * The document is only used by the calling thread.
+      * Low-memory mode does not apply.
+      * @param dom The SVG document
+      * @param baseDir Directory that linked images are relative to
+      */
+     public void process(final Document dom, final Path baseDir) throws EmbedAndCropException {
+          String name = dom.getDocumentURI() == null ? "(document)" : dom.getDocumentURI();
+          measure(name, -1, null, new DocumentTask() {
+               @Override
+               void run() throws EmbedAndCropException {
+                    processDocument(dom, baseDir == null ? null : baseDir.toString());
+               }
+          });
+     }
+     
+     // -- Helper methods --
+     
+     /**
+      * Give a file the POSIX permissions of the file it will replace,
+      * if there is one and the file system has them
+      */
+     private static void copyPermissions(File from, File to) {
+          try {
+               if(from.exists())
+                    Files.setPosixFilePermissions(to.toPath(), Files.getPosixFilePermissions(from.toPath()));
+          } catch(UnsupportedOperationException e) { // Not a POSIX file system
+          } catch(IOException e) { } // Keep the default permissions
+     }
+     
+     /** Run a document task, recording its metrics if a report was requested */
+     private void measure(String name, long inputBytes, File output, DocumentTask task) throws EmbedAndCropException {
+          if(metrics == null) {
+               task.run();
+               return;
+          }
+          Metrics.Record doc = metrics.begin(name, inputBytes);
+          Metrics.Record prev = Metrics.enter(doc);
+          Throwable error = null;
+          try {
+               task.run();
+          } catch(EmbedAndCropException e) {
+               error = e;
+               throw e;
+          } catch(RuntimeException e) {
+               error = e;
+               throw e;
+          } finally {
+               Metrics.exit(prev);
+               metrics.end(doc, output, error);
+          }
+     }
+     
+     /**
+      * Rewrite an SVG file to a stream
+      * @param basePath Directory that linked images are relative to
+      * @param os Destination; flushed, but not closed
+      */
+     private void rewrite(File input, String basePath, OutputStream os) throws EmbedAndCropException {
+          if(streaming) {
+               if(shareImageData)
+                    System.err.println("Repeated images can't be shared in low-memory mode; -d is ignored.");
+               new StreamingSvgRewriter(this, threads).rewrite(input, basePath, os);
+               return;
+          }
+          long[] m = Metrics.mark();
+          Document dom = readSVG(input);
+          Metrics.add(Metrics.PARSE, m);
+          processDocument(dom, basePath);
+          m = Metrics.mark();
+          SVGToStream(dom, os);
+          Metrics.add(Metrics.SERIALIZE, m);
+     }
+     
+     /**
+      * Process an SVG DOM.
+      * <p> Document structure is examined and modified on the calling thread,
+      * in document order. Loading and encoding of image data is handed to
+      * {@link #runJobs}, which may use a pool of worker threads.
+      */
+     private void processDocument(Document dom, String basePath) throws EmbedAndCropException {
+          List<ImageJob> jobs = new ArrayList<ImageJob>();
+          DocumentIndex index = new DocumentIndex(dom);
+          TransformCache transforms = new TransformCache();
+          Map<String, Future<EncodedImage>> results = new ConcurrentHashMap<String, Future<EncodedImage>>();
+          // Copy the live list first, so removing mask images doesn't skip the next image
+          NodeList live = dom.getElementsByTagName("image");
+          List<Node> images = new ArrayList<Node>(live.getLength());
+          for(int i=0; i<live.getLength(); i++)
+               images.add(live.item(i));
+          for(Node img : images) {
+               if(img.getNodeType() == Node.ELEMENT_NODE) {
+                    System.err.println("## Working on image " + ((Element)img).getAttribute("id"));
+                    if (isMask((Element)img)) {
+                        img.getParentNode().removeChild(img);
+                        continue;
+                    }
+                    removeMask((Element)img);
+                    long[] m = Metrics.mark();
+                    Element clip = getClipPath((Element)img, index);
+                    Metrics.add(Metrics.CLIP, m);
+                    jobs.add(prepareImg((Element)img, clip, basePath, transforms, results));
+               }
+          }
+          runJobs(jobs);
+          if(shareImageData)
+               shareImageData(dom, jobs, index);
+     }
+     
+     /**
+      * Write image data used by more than one image element only once.
+      * <p> Elements with the same data and the same {@code width},
+      * {@code height}, and {@code preserveAspectRatio} share a single image
+      * in the document's {@code defs}. Each element is replaced by a
+      * {@code use} element with the original position and attributes. If the
+      * element has a clip path, the {@code use} element is wrapped in a group
+      * carrying the clip path and transform, so the clip stays in the same
+      * coordinate system.
+      */
+     private void shareImageData(Document dom, List<ImageJob> jobs, DocumentIndex index) {
+          Map<String, List<Element>> groups = new HashMap<String, List<Element>>();
+          for(ImageJob job : jobs) {
+               Element img = job.img;
+               if(img.getParentNode() == null)
+                    continue;
+               String href = img.getAttribute("xlink:href");
+               if(!href.startsWith("data:"))
+                    continue;
+               String key = img.getAttribute("width") + " " + img.getAttribute("height") + " "
+                       + img.getAttribute("preserveAspectRatio") + " " + href;
+               List<Element> group = groups.get(key);
+               if(group == null) {
+                    group = new ArrayList<Element>();
+                    groups.put(key, group);
+               }
+               group.add(img);
+          }
+          Element defs = null;
+          int n = 0;
+          for(List<Element> group : groups.values()) {
+               if(group.size() < 2)
+                    continue;
+               if(defs == null)
+                    defs = getDefs(dom);
+               String id;
+               do { id = "embedded-image-" + (++n); }
+               while(index.get(id) != null);
+               Element first = group.get(0);
+               Element shared = dom.createElement("image");
+               shared.setAttribute("id", id);
+               shared.setAttribute("width", first.getAttribute("width"));
+               shared.setAttribute("height", first.getAttribute("height"));
+               if(first.hasAttribute("preserveAspectRatio"))
+                    shared.setAttribute("preserveAspectRatio", first.getAttribute("preserveAspectRatio"));
+               shared.setAttribute("xlink:href", first.getAttribute("xlink:href"));
+               defs.appendChild(shared);
+               System.err.println("Sharing image data between " + group.size() + " elements as " + id);
+               for(Element img : group)
+                    replaceWithUse(dom, img, id);
+          }
+     }
+     
+     /** Get the document's first top-level {@code defs} element, creating one if needed */
+     private Element getDefs(Document dom) {
+          Element root = dom.getDocumentElement();
+          for(Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+               if(n.getNodeType() == Node.ELEMENT_NODE && ((Element)n).getTagName().equals("defs"))
+                    return (Element)n;
+          }
+          Element defs = dom.createElement("defs");
+          root.insertBefore(defs, root.getFirstChild());
+          return defs;
+     }
+     
+     /** Replace an image element with a {@code use} element referencing shared image data */
+     private void replaceWithUse(Document dom, Element img, String id) {
+          Element use = dom.createElement("use");
+          use.setAttribute("xlink:href", "#" + id);
+          if(img.hasAttribute("x"))
+               use.setAttribute("x", img.getAttribute("x"));
+          if(img.hasAttribute("y"))
+               use.setAttribute("y", img.getAttribute("y"));
+          Element outer = use;
+          if(img.hasAttribute("clip-path")) {
+               outer = dom.createElement("g");
+               outer.appendChild(use);
+          }
+          NamedNodeMap attrs = img.getAttributes();
+          for(int i=0; i<attrs.getLength(); i++) {
+               String name = attrs.item(i).getNodeName();
+               if(name.equals("x") || name.equals("y") || name.equals("width") || name.equals("height")
+                       || name.equals("preserveAspectRatio") || name.equals("xlink:href") || name.equals("href"))
+                    continue;
+               outer.setAttribute(name, attrs.item(i).getNodeValue());
+          }
+          while(img.getFirstChild() != null)
+               use.appendChild(img.getFirstChild());
+          img.getParentNode().replaceChild(outer, img);
+     }
+     
+     /**
+      * Check whether an image element is itself part of a mask.
+      * Such images are removed, rather than embedded.
+      */
+     boolean isMask(Element img) {
+          Element parent = (Element)(img.getParentNode());
+          if (parent.getTagName().equals("mask")) {
+              System.err.println("This image appears to BE a mask and will be removed!");
+              return true;
+          }
+          return false;
+     }
+     
+     /** Remove any mask applied to an image element */
+     void removeMask(Element img) {
+          String mask = img.getAttribute("mask");
+          if(mask != null && !mask.isBlank()) {
+              System.err.println("This image has a mask, which will be removed to ensure compatability. (" + mask + ")");
+              img.removeAttribute("mask");
+          }
+     }
+     
+     /**
+      * Run image jobs and apply the results to their elements in document order.
+      * <p> If more than one worker thread is requested, jobs are run on a
+      * fixed-size pool. At most two jobs per thread are queued ahead of the
+      * element currently being updated, so only a bounded number of
+      * encoded images are held in memory at once.
+      */
+     private void runJobs(List<ImageJob> jobs) throws EmbedAndCropException {
+          if(threads < 2 || jobs.size() < 2) {
+               for(ImageJob job : jobs)
+                    applyImgData(job.img, job.call());
+               return;
+          }
+          ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+          try {
+               ArrayDeque<Future<EncodedImage>> pending = new ArrayDeque<Future<EncodedImage>>();
+               int window = 2 * threads;
+               int next = 0;
+               for(int i=0; i<jobs.size(); i++) {
+                    while(next < jobs.size() && next < i + window)
+                         pending.add(pool.submit(jobs.get(next++)));
+                    applyImgData(jobs.get(i).img, awaitJob(pending.poll()));
+               }
+          } finally {
+               pool.shutdownNow();
+          }
+     }
+     
+     /** Wait for a job to finish, unwrapping any exception it threw */
+     EncodedImage awaitJob(Future<EncodedImage> f) throws EmbedAndCropException {
+          try {
+               return f.get();
+          } catch(InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new EmbedAndCropException("Interrupted while processing images");
+          } catch(ExecutionException e) {
+               Throwable t = e.getCause();
+               if(t instanceof EmbedAndCropException)
+                    throw (EmbedAndCropException)t;
+               if(t instanceof RuntimeException)
+                    throw (RuntimeException)t;
+               if(t instanceof Error)
+                    throw (Error)t;
+               throw new EmbedAndCropException("Problem processing image; " + t);
+          }
+     }
+     
+     /** Push XML(SVG) to a stream, without closing it */
+     private void SVGToStream(Document dom, OutputStream os) throws EmbedAndCropException {
+          try{
+               Transformer xmlt = TransformerFactory.newInstance().newTransformer();
+               xmlt.setOutputProperty(OutputKeys.METHOD, "xml");
+               xmlt.transform(new DOMSource(dom), new StreamResult(os));
+               os.flush();
+          } catch(Throwable t) { throw new EmbedAndCropException("XML write error: " + t); }
+     }
+     
+     /** Save an XML(SVG) file */
+     void save(Document dom, File f) throws EmbedAndCropException {
+          try{
+               f.getParentFile().mkdirs();
+               Transformer xmlt = TransformerFactory.newInstance().newTransformer();
+               xmlt.setOutputProperty(OutputKeys.METHOD, "xml");
+               xmlt.transform(new DOMSource(dom), new StreamResult(f));
+          } catch(Throwable t) { throw new EmbedAndCropException("XML write error: " + t); }
+     }
+     
+     /**
+      * Collect everything needed to process an image element from the DOM,
+      * so the job itself never touches the document
+      * @param results Results of the jobs in this run, by image source and
+      *     processing parameters, so repeated images are only processed once;
+      *     {@code null} to process every image independently
+      */
+     ImageJob prepareImg(Element img, Element clip, String basePath, TransformCache transforms,
+             Map<String, Future<EncodedImage>> results) throws EmbedAndCropException {
+          String href = getImageHref(img);
+          Metrics.Record rec = Metrics.image(img.getAttribute("id"), href.startsWith("data:") ? null : href);
+          long[] m = Metrics.mark();
+          double[] cf = {0,0,0,0};
+          if(clip != null)
+               cf = getCropFraction(img, clip);
+          double[] WH = null;
+          if(doResampling)
+               WH = getElementDims(img, transforms);
+          if(rec != null)
+               rec.add(Metrics.CLIP, m);
+          return new ImageJob(img, href, basePath, cf, WH, results, rec);
+     }
+     
+     /** Get the image link or data URI of an image element */
+     private String getImageHref(Element imgElement) throws EmbedAndCropException {
+         String path = imgElement.getAttribute("xlink:href");
+         if (path == null || path.equals(""))
+             path = imgElement.getAttribute("href"); // xlink:href is now depricated in the SVG standard
+         if (path == null || path.equals(""))
+             throw new EmbedAndCropException("No image file or data!");
+         return path;
+     }
+     
+     /**
+      * Write encoded image data to its element
+      * @param img Image element
+      * @param enc Encoded image data, or {@code null} if the element should be left as-is
+      */
+     void applyImgData(Element img, EncodedImage enc) {
+          if(enc == null)
+               return;
+          adjustImgPlacement(img, enc.crop);
+          img.setAttribute("xlink:href", enc.href);
+     }
+     
+     /**
+      * Decide whether an embedded image should be processed, from the
+      * length of its data URI alone, without decoding it
+      * @param path Value of the element's {@code xlink:href} attribute
+      * @param embedSizeMin Do not process embedded images below this size (bytes).
+      * Set to -1 to skip all embedded images.
+      * @return {@code true} if the image is above the size limit
+      */
+     private boolean checkEmbeddedSize(String path, long embedSizeMin) {
+         if(embedSizeMin < 0) {
+             System.err.println("Skipping embedded image.");
+             return false;
+         }
+         try {
+             long imgSize = getEmbeddedImageSize(path);
+             Metrics.input(imgSize);
+             if(imgSize <= embedSizeMin) {
+                 System.err.println("Embedded image is below the size limit and will be left as-is.");
+                 return false;
+             }
+             System.err.println("Embedded image is above the size limit and will be processed.");
+             return true;
+         } catch(EmbedAndCropException e) {
+             System.err.println(e.getMessage());
+             System.err.println("Embedded image will be left as-is.");
+             return false;
+         }
+     }
+     
+     /**
+      * Load image data from an SVG data URI
+      * @param path Value of the element's {@code xlink:href} attribute,
+      * already checked with {@link #checkEmbeddedSize}
+      * @return Returns the image data in a BufferedImage, or null if an
+      * embedded image cannot be loaded and the element should be skipped.
+      */
+     private BufferedImage loadEmbeddedImageData(String path) {
+         try {
+             return readEmbeddedImageData(path);
+         } catch(EmbedAndCropException e) {
+             System.err.println(e.getMessage());
+             System.err.println("Embedded image will be left as-is.");
+             return null;
+         }
+     }
+     
+     /**
+      * Find the file an SVG image link points to
+      * @param path Value of the element's {@code xlink:href} attribute
+      * @param basePath Directory of the SVG file, for relative links
+      * @throws EmbedAndCropException The file can't be read (i.e. broken link)
+      */
+     private File resolveImageFile(String path, String basePath) throws EmbedAndCropException {
+         if (path.startsWith("file:///")) {
+             if (System.getProperty("os.name", "generic").toLowerCase(Locale.ENGLISH).indexOf("win") > 0) {
+                 path = path.substring(8);
+             } else {
+                 path = path.substring(7);
+             }
+         }
+         path = path.replace("%20", " ");
+         path = path.replace("%5C", "\\");
+         File imf = new File(path);
+         if (!imf.isAbsolute()) {
+             imf = new File(basePath, path);
+         }
+         if (!imf.canRead()) {
+             throw new EmbedAndCropException("Can't read file link: " + path);
+         }
+         return imf;
+     }
+     
+     /**
+      * Load all image data from a linked file with ImageJ.
+      * <p> This is the fallback for files {@link LinkedImageReader} doesn't
+      * handle: formats ImageIO can't read, and images with alpha or more
+      * than 8 bits per sample, which ImageJ flattens to RGB in its own way
+      * (e.g. 16-bit images are scaled to their display range).
+      * Everything else is decoded with ImageIO by {@link #putRegionData}.
+      * @throws EmbedAndCropException Image data cannot be loaded
+      */
+     private BufferedImage loadImageFile(File imf) throws EmbedAndCropException {
+         try {
+             System.err.println("Loading image from file " + imf.getName());
+             long[] m = Metrics.mark();
+             BufferedImage img = IJ.openImage(imf.getAbsolutePath()).getBufferedImage();
+             Metrics.add(Metrics.DECODE, m);
+             return img;
+         } catch (Throwable t) {
+             throw new EmbedAndCropException("Problem reading image file; " + t);
+         }
+     }
+     
+     /**
+      * Decode only the part of a linked image file that will be embedded,
+      * then resample and encode it.
+      * <p> The crop is calculated from the image header before any pixels are
+      * decoded. If the image is resampled, a margin around the crop is decoded
+      * too and trimmed after resampling, so the edges of the embedded image are
+      * not affected by the crop.
+      * @param imf The linked file
+      * @param crop Fraction of image to crop from each edge, {@code {top, bottom, left, right}}
+      * @param WH Image element dimensions in document space, or {@code null} if not resampling
+      * @return The encoded image and the fraction actually cropped from each edge,
+      *     or {@code null} if the file can't be read by region and should be
+      *     loaded with {@link #loadImageFile} instead
+      */
+     private EncodedImage putRegionData(File imf, double[] crop, double[] WH) throws EmbedAndCropException {
+          LinkedImageReader src = null;
+          try {
+               long[] m = Metrics.mark();
+               src = LinkedImageReader.open(imf);
+               if(src == null)
+                    return null;
+               System.err.println("Loading image region from file " + imf.getName());
+               int w = src.getWidth();
+               int h = src.getHeight();
+               int[] icrop = pixelCrop(crop, w, h);
+               double[] s = doResampling ? getResampleScale(w, h, WH, targetRes, maxRes) : null;
+               if(s == null) {
+                    if(icrop[0] == 0 && icrop[1] == 0 && icrop[2] == 0 && icrop[3] == 0
+                            && canPassThrough(imf, src.getFormat()))
+                         return passThrough(imf, src.getFormat());
+                    if(imgFileType.equals("jpeg") && src.getFormat().equals("jpeg")) {
+                         EncodedImage enc = putJpegCrop(imf, icrop);
+                         if(enc != null)
+                              return enc;
+                    }
+                    Rectangle region = new Rectangle(
+                         icrop[2], icrop[0],
+                         w - icrop[2] - icrop[3], h - icrop[0] - icrop[1]);
+                    double[] acrop = { ((double)icrop[0])/h, ((double)icrop[1])/h,
+                                       ((double)icrop[2])/w, ((double)icrop[3])/w };
+                    StripImage.Rows.Source rows = getStripSource(imf, src, region, 1, 1);
+                    if(rows != null)
+                         return encodeStripData(new StripImage(rows), acrop);
+                    BufferedImage cropImg = RgbConverter.toRGBOrGray(src.read(region));
+                    Metrics.add(Metrics.DECODE, m);
+                    return encodeImgData(cropImg, acrop);
+               }
+               int mx = (int)Math.ceil(RESAMPLE_MARGIN / s[0]);
+               int my = (int)Math.ceil(RESAMPLE_MARGIN / s[1]);
+               int top = Math.max(icrop[0] - my, 0);
+               int bottom = Math.min(h - icrop[1] + my, h);
+               int left = Math.max(icrop[2] - mx, 0);
+               int right = Math.min(w - icrop[3] + mx, w);
+               Rectangle region = new Rectangle(left, top, right - left, bottom - top);
+               int kx = getSubsampling(s[0]);
+               int ky = getSubsampling(s[1]);
+               if(kx > 1 || ky > 1)
+                    System.err.printf("Decoding every %1$d x %2$d pixels.\n", kx, ky);
+               final StripImage.Rows.Source rows = getStripSource(imf, src, region, kx, ky);
+               BufferedImage R = null;
+               final double fx, fy;
+               int rw, rh;
+               if(rows == null) {
+                    BufferedImage sub = RgbConverter.toRGBOrGray(src.read(region, kx, ky));
+                    Metrics.add(Metrics.DECODE, m);
+                    R = resample(sub,
+                         s[0] * region.width / sub.getWidth(), s[1] * region.height / sub.getHeight());
+                    rw = R.getWidth();
+                    rh = R.getHeight();
+                    fx = fy = 0;
+               } else {
+                    int subW = (region.width + kx - 1) / kx;
+                    int subH = (region.height + ky - 1) / ky;
+                    fx = s[0] * region.width / subW;
+                    fy = s[1] * region.height / subH;
+                    rw = Resampler.size(subW, fx);
+                    rh = Resampler.size(subH, fy);
+                    System.err.printf("Downsampling by factor of %1$.3f x %2$.3f .\n", fx, fy);
+               }
+               m = Metrics.mark();
+               double sx = ((double)rw) / region.width;
+               double sy = ((double)rh) / region.height;
+               int[] rcrop = { (int)Math.floor((icrop[0] - top) * sy), (int)Math.floor((bottom - h + icrop[1]) * sy),
+                               (int)Math.floor((icrop[2] - left) * sx), (int)Math.floor((right - w + icrop[3]) * sx) };
+               final Rectangle keep = new Rectangle(rcrop[2], rcrop[0],
+                    rw - rcrop[2] - rcrop[3], rh - rcrop[0] - rcrop[1]);
+               double[] acrop = { (top + rcrop[0] / sy) / h, (h - bottom + rcrop[1] / sy) / h,
+                                  (left + rcrop[2] / sx) / w, (w - right + rcrop[3] / sx) / w };
+               if(rows != null) {
+                    return encodeStripData(new StripImage(new StripImage.Rows.Source() {
+                         @Override
+                         public StripImage.Rows open() throws IOException {
+                              StripImage.Rows r = new Resampler(resampleKernel, 1, null).resample(rows.open(), fx, fy);
+                              return StripImage.crop(r, keep);
+                         }
+                    }), acrop);
+               }
+               BufferedImage cropImg = R.getSubimage(keep.x, keep.y, keep.width, keep.height);
+               Metrics.add(Metrics.CROP, m);
+               return encodeImgData(cropImg, acrop);
+          } catch(IOException e) {
+               throw new EmbedAndCropException("Problem reading image file; " + e);
+          } finally {
+               if(src != null) {
+                    try { src.close(); }
+                    catch(IOException e) { }
+               }
+          }
+     }
+     
+     /**
+      * Can a linked file that needs no crop or resampling be embedded as is?
+      * <p> PNG and Jpeg files are embedded as is when the output type is the
+      * same. With the mixed types, only Jpeg files are: re-encoding them can
+      * only lose quality, but a PNG file may be a photo that would be much
+      * smaller as a Jpeg. Jpeg files with an Exif orientation are not, as
+      * viewers would rotate them, while the decoded pixels are not rotated.
+      * @param format The file's format, from {@link LinkedImageReader#getFormat}
+      */
+     private boolean canPassThrough(File imf, String format) throws IOException {
+          if(format.equals("png"))
+               return imgFileType.equals("png");
+          if(!format.equals("jpeg"))
+               return false;
+          if(!imgFileType.equals("jpeg") && !imgFileType.equals("mix") && !imgFileType.equals("mix-fast"))
+               return false;
+          return JpegCropper.getExifOrientation(imf) == 1;
+     }
+     
+     /** Embed the bytes of a linked file as they are */
+     private EncodedImage passThrough(File imf, String format) throws IOException {
+          System.err.println("Embedding file as is, without re-encoding.");
+          long[] m = Metrics.mark();
+          String result = DataUriCodec.encode("image/" + format, imf);
+          Metrics.add(Metrics.BASE64, m);
+          Metrics.output(result);
+          return new EncodedImage(result, new double[4]);
+     }
+     
+     /**
+      * Crop a linked Jpeg file without re-encoding it, with {@link JpegCropper}.
+      * <p> The pixels are embedded exactly as they are in the file, at its
+      * own quality, rather than being decoded and compressed again. The left
+      * and top edges of the crop are moved out to the nearest MCU boundary,
+      * so a few more pixels (up to 15) may be kept there.
+      * @param icrop Pixels to crop from each edge, {@code {top, bottom, left, right}}
+      * @return The encoded image and the fraction actually cropped from each edge,
+      *     or {@code null} if the file's encoding isn't supported
+      */
+     private EncodedImage putJpegCrop(File imf, int[] icrop) throws IOException, EmbedAndCropException {
+          long[] m = Metrics.mark();
+          JpegCropper jc = JpegCropper.open(imf);
+          if(jc == null)
+               return null;
+          int w = jc.getWidth();
+          int h = jc.getHeight();
+          int top = icrop[0] / jc.getMcuHeight() * jc.getMcuHeight();
+          int left = icrop[2] / jc.getMcuWidth() * jc.getMcuWidth();
+          DataUriCodec.Buffer baos = new DataUriCodec.Buffer();
+          try {
+               jc.crop(new Rectangle(left, top, w - left - icrop[3], h - top - icrop[1]), baos);
+          } catch(IOException e) {
+               System.err.println("Unable to crop Jpeg data directly (" + e.getMessage() + "); re-encoding.");
+               return null;
+          }
+          Metrics.add(Metrics.CROP, m);
+          System.err.println("Cropped Jpeg image without re-encoding.");
+          double[] acrop = { ((double)top)/h, ((double)icrop[1])/h,
+                             ((double)left)/w, ((double)icrop[3])/w };
+          return toDataUri("jpeg", baos, acrop);
+     }
+     
+     /**
+      * Get the rows of a decoded region, for processing in strips, if the
+      * region is large and the file can be read a few rows at a time:
+      * PNG files are decoded row by row, and tiled images, including most
+      * TIFF files, a tile or strip at a time.
+      * @param src The open file; must stay open while the rows are read
+      * @param region The region to decode
+      * @param kx Horizontal subsampling step
+      * @param ky Vertical subsampling step
+      * @return A source of the rows, or {@code null} if the region
+      *     should be decoded all at once
+      */
+     private StripImage.Rows.Source getStripSource(final File imf, final LinkedImageReader src,
+             final Rectangle region, final int kx, final int ky) throws IOException {
+          long pixels = (long)((region.width + kx - 1) / kx) * ((region.height + ky - 1) / ky);
+          if(pixels < STRIP_PIXELS_MIN)
+               return null;
+          StripImage.Rows.Source rows = null;
+          if(src.getFormat().equals("png")) {
+               PngRowReader r = PngRowReader.open(imf, region, kx, ky);
+               if(r != null) {
+                    r.close();
+                    rows = new StripImage.Rows.Source() {
+                         @Override
+                         public StripImage.Rows open() throws IOException {
+                              return PngRowReader.open(imf, region, kx, ky);
+                         }
+                    };
+               }
+          } else if(src.canReadBands()) {
+               rows = new StripImage.Rows.Source() {
+                    @Override
+                    public StripImage.Rows open() throws IOException {
+                         return src.readBands(region, kx, ky);
+                    }
+               };
+          }
+          if(rows != null)
+               System.err.println("Processing image in strips");
+          return rows;
+     }
+     
+     /**
+      * Choose a decode-time subsampling step for an image that will be downsampled
+      * <p> The step leaves the decoded image at least {@link #SUBSAMPLE_HEADROOM}
+      * times the target size, so the resampling filter still smooths over
+      * the pixels skipped by the decoder.
+      * @param scale Scale factor from the source image to the target size
+      * @return Decode every n-th pixel; 1 to decode all pixels
+      */
+     private int getSubsampling(double scale) {
+          return Math.max((int)Math.floor(1 / (scale * SUBSAMPLE_HEADROOM)), 1);
+     }
+     
+     /**
+      * Describe every setting that affects the encoded image, for the cache key
+      * @param crop Fraction of image to crop from each edge
+      * @param WH Image element dimensions in document space, or {@code null} if not resampling
+      */
+     private String getCacheParams(double[] crop, double[] WH) {
+          String s = imgFileType + " " + compQual + " " + Arrays.toString(crop);
+          if(doResampling)
+               s += " " + targetRes + " " + maxRes + " " + resampleKernel + " " + Arrays.toString(WH);
+          if(pngLevel >= 0)
+               s += " png " + pngLevel + " " + pngFilter;
+          return s;
+     }
+     
+     /**
+      * Convert crop fractions to whole pixels, rounding so that no part
+      * of the image inside the clip is cropped
+      * @param crop Fraction of image to crop from each edge, {@code {top, bottom, left, right}}
+      * @return Pixels to crop from each edge, {@code {top, bottom, left, right}}
+      */
+     private int[] pixelCrop(double[] crop, int w, int h) {
+          int[] icrop = { (int)Math.floor(crop[0]*h), (int)Math.floor(crop[1]*h),
+                          (int)Math.floor(crop[2]*w), (int)Math.floor(crop[3]*w) };
+          for(int i=0; i<4; i++)
+               icrop[i] = Math.max(icrop[i], 0); // Don't crop on outside
+          return icrop;
+     }
+     
+     /**
+      * Crop, resample, and encode image data for embedding.
+      * Does not access the DOM, so may be called from a worker thread.
+      * @param origImg Image data as a BufferedImage
+      * @param crop Fraction of image to crop from each edge, {@code {top, bottom, left, right}}
+      * @param WH Image element dimensions in document space, or {@code null} if not resampling
+      * @return The encoded image and the fraction actually cropped from each edge
+      */
+     EncodedImage putImgData(BufferedImage origImg, double[] crop, double[] WH) throws EmbedAndCropException {
+
+          if(doResampling) {
+              origImg = limitResolution(origImg, WH, targetRes, maxRes);
+          }
+          long[] m = Metrics.mark();
+          int w = origImg.getWidth();
+          int h = origImg.getHeight();
+          int[] icrop = pixelCrop(crop, w, h);
+          BufferedImage cropImg = origImg.getSubimage(
+               icrop[2], icrop[0],
+               w - icrop[2] - icrop[3], h - icrop[0] - icrop[1]);
+          Metrics.add(Metrics.CROP, m);
+          double[] acrop = { ((double)icrop[0])/h, ((double)icrop[1])/h,
+                             ((double)icrop[2])/w, ((double)icrop[3])/w };
+          return encodeImgData(cropImg, acrop);
+     }
+     
+     /**
+      * Encode cropped image data for embedding
+      * @param cropImg The cropped (and possibly resampled) image
+      * @param acrop Fraction of the image actually cropped from each edge
+      * @return The encoded image and {@code acrop}
+      */
+     private EncodedImage encodeImgData(BufferedImage cropImg, double[] acrop) throws EmbedAndCropException {
+          DataUriCodec.Buffer baos = null;
+          String mime = null;
+          try{
+               if(imgFileType.equals("jpeg")) {
+                   baos = new DataUriCodec.Buffer();
+                   writeJpeg(cropImg, baos);
+                   mime = "jpeg";
+               }
+               else if(imgFileType.equals("png")) {
+                   baos = new DataUriCodec.Buffer();
+                   writePng(cropImg, baos);
+                   mime = "png";
+               }
+               else if(cropImg.getWidth() > JPEG_MAX_SIZE || cropImg.getHeight() > JPEG_MAX_SIZE) {
+                   System.err.println("Embedding image as PNG; too large for Jpeg.");
+                   baos = new DataUriCodec.Buffer();
+                   writePng(cropImg, baos);
+                   mime = "png";
+               }
+               else if(imgFileType.equals("mix-fast") && isLargerThanMosaic(cropImg)) {
+                   baos = new DataUriCodec.Buffer();
+                   if(estimateJpegSmaller(cropImg)) {
+                       System.err.println("Embedding image as Jpeg (estimated).");
+                       writeJpeg(cropImg, baos);
+                       mime = "jpeg";
+                   } else {
+                       System.err.println("Embedding image as PNG (estimated).");
+                       writePng(cropImg, baos);
+                       mime = "png";
+                   }
+               }
+               else if(imgFileType.equals("mix") || imgFileType.equals("mix-fast")) {
+                   DataUriCodec.Buffer bytesJpg = new DataUriCodec.Buffer();
+                   DataUriCodec.Buffer bytesPng = new DataUriCodec.Buffer();
+                   if(encodeSmaller(cropImg, bytesJpg, bytesPng)) {
+                       System.err.println("Embedding image as Jpeg.");
+                       mime = "jpeg";
+                       baos = bytesJpg;
+                   } else {
+                       System.err.println("Embedding image as PNG.");
+                       mime = "png";
+                       baos = bytesPng;
+                   }
+               }
+          }
+          catch(Throwable t) { throw new EmbedAndCropException("Problem writing/encoding image data; " + t); }
+          if(baos == null)
+              throw new EmbedAndCropException("Unable to determine image type: " + imgFileType);
+          return toDataUri(mime, baos, acrop);
+     }
+     
+     /**
+      * Encode an image produced in strips for embedding.
+      * <p> PNG images are written a strip at a time. Jpeg images are
+      * written by the ImageIO writer, which reads the whole image into
+      * one raster first; the mixed types encode the whole image twice,
+      * so it is produced all at once. Either way, the full source image
+      * is never held in memory, only the image being embedded.
+      * @param img The cropped (and possibly resampled) image; closed when done
+      * @param acrop Fraction of the image actually cropped from each edge
+      * @return The encoded image and {@code acrop}
+      */
+     private EncodedImage encodeStripData(StripImage img, double[] acrop) throws EmbedAndCropException {
+          try {
+               if(!imgFileType.equals("png") && !imgFileType.equals("jpeg"))
+                    return encodeImgData(img.toBufferedImage(), acrop);
+               DataUriCodec.Buffer baos = new DataUriCodec.Buffer();
+               if(imgFileType.equals("png"))
+                    writePng(img, baos);
+               else
+                    writeJpeg(img, baos);
+               return toDataUri(imgFileType, baos, acrop);
+          } catch(EmbedAndCropException e) {
+               throw e;
+          } catch(Throwable t) {
+               throw new EmbedAndCropException("Problem writing/encoding image data; " + t);
+          } finally {
+               try { img.close(); }
+               catch(IOException e) { }
+          }
+     }
+     
+     /** Make the data URI for encoded image data */
+     private EncodedImage toDataUri(String mime, DataUriCodec.Buffer baos, double[] acrop) throws EmbedAndCropException {
+          String result;
+          long[] m = Metrics.mark();
+          try {
+               result = DataUriCodec.encode("image/" + mime, baos);
+          } catch(IOException e) { throw new EmbedAndCropException("Problem encoding image data; " + e); }
+          Metrics.add(Metrics.BASE64, m);
+          Metrics.output(result);
+          return new EncodedImage(result, acrop);
+     }
+     
+     /**
+      * Encode an image as both Jpeg and PNG at the same time.
+      * <p> The Jpeg encoder runs on a helper thread while the PNG encoder runs
+      * on the calling thread. As soon as one encoder finishes, the other is
+      * limited to the size of the finished result, so it stops as soon as
+      * it can no longer produce a smaller file. The choice of format is the
+      * same as if both images had been encoded completely: Jpeg is used only
+      * if it is strictly smaller than PNG.
+      * @param img Image to encode
+      * @param bytesJpg Receives the Jpeg data
+      * @param bytesPng Receives the PNG data
+      * @return {@code true} if the Jpeg is smaller, in which case {@code bytesPng}
+      *     may hold incomplete data; {@code false} if the PNG should be used,
+      *     in which case {@code bytesJpg} may hold incomplete data
+      */
+     private boolean encodeSmaller(final BufferedImage img,
+             ByteArrayOutputStream bytesJpg, ByteArrayOutputStream bytesPng)
+             throws IOException, EmbedAndCropException {
+          final LimitedOutputStream jpg = new LimitedOutputStream(bytesJpg);
+          final LimitedOutputStream png = new LimitedOutputStream(bytesPng);
+          final Metrics.Record rec = Metrics.current();
+          Future<Boolean> jpgTask = ENCODERS.submit(new Callable<Boolean>() {
+               @Override
+               public Boolean call() throws IOException {
+                    Metrics.Record prev = Metrics.enter(rec);
+                    try {
+                         if(!writeLimited(img, "jpeg", jpg))
+                              return false;
+                    } finally {
+                         Metrics.exit(prev);
+                    }
+                    png.setLimit(jpg.getCount()); // PNG is kept on a tie
+                    return true;
+               }
+          });
+          boolean pngDone;
+          try {
+               pngDone = writeLimited(img, "png", png);
+          } catch(IOException e) {
+               jpgTask.cancel(true);
+               throw e;
+          }
+          if(pngDone)
+               jpg.setLimit(png.getCount() - 1);
+          boolean jpgDone;
+          try {
+               jpgDone = jpgTask.get();
+          } catch(InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new EmbedAndCropException("Interrupted while encoding image");
+          } catch(ExecutionException e) {
+               throw new EmbedAndCropException("Problem writing/encoding image data; " + e.getCause());
+          }
+          if(!jpgDone)
+               return false;
+          if(!pngDone)
+               return true;
+          return jpg.getCount() < png.getCount();
+     }
+     
+     /**
+      * Is the image large enough that estimating the format from a mosaic
+      * is worthwhile? Smaller images, and images too narrow or short to
+      * sample a pixel for every tile, are simply encoded in both formats.
+      */
+     private static boolean isLargerThanMosaic(BufferedImage img) {
+          return img.getWidth() >= MOSAIC_TILES && img.getHeight() >= MOSAIC_TILES
+                  && (long)img.getWidth() * img.getHeight()
+                  > 4L * MOSAIC_TILES * MOSAIC_TILES * MOSAIC_TILE * MOSAIC_TILE;
+     }
+     
+     /**
+      * Estimate whether Jpeg encoding will produce a smaller file than PNG
+      * without encoding the whole image.
+      * <p> First, a subsample of the image is checked for the number of
+      * colors and for how often neighboring pixels are identical. Plots,
+      * line art, and other images with few colors and large flat areas are
+      * always encoded as PNG. Images with few colors but no flat areas,
+      * e.g. grayscale micrographs, get a closer look along with everything
+      * else: a mosaic of tiles sampled evenly across the image is encoded
+      * in both formats and the smaller result decides.
+      * @param img An image {@link #isLargerThanMosaic larger than the mosaic}
+      */
+     private boolean estimateJpegSmaller(BufferedImage img) throws IOException, EmbedAndCropException {
+          final int w = img.getWidth();
+          final int h = img.getHeight();
+          
+          int step = (int)Math.max(1, Math.sqrt((double)w * h / COLOR_SAMPLES));
+          HashSet<Integer> colors = new HashSet<Integer>();
+          int samples = 0;
+          int flat = 0;
+          for(int y=0; y<h && colors.size() <= FEW_COLORS; y+=step) {
+               for(int x=0; x<w-1 && colors.size() <= FEW_COLORS; x+=step) {
+                    int c = img.getRGB(x, y) & 0xffffff;
+                    colors.add(c);
+                    samples++;
+                    if(c == (img.getRGB(x + 1, y) & 0xffffff))
+                         flat++;
+               }
+          }
+          if(colors.size() <= FEW_COLORS && flat >= samples * MIN_FLAT_FRACTION)
+               return false;
+          
+          int tw = Math.min(MOSAIC_TILE, w / MOSAIC_TILES);
+          int th = Math.min(MOSAIC_TILE, h / MOSAIC_TILES);
+          final boolean gray = img.getType() == BufferedImage.TYPE_BYTE_GRAY;
+          BufferedImage mosaic = new BufferedImage(tw * MOSAIC_TILES, th * MOSAIC_TILES,
+                  gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+          int[] tile = new int[tw * th];
+          for(int i=0; i<MOSAIC_TILES; i++) {
+               for(int j=0; j<MOSAIC_TILES; j++) {
+                    int x = (int)((long)(w - tw) * j / (MOSAIC_TILES - 1));
+                    int y = (int)((long)(h - th) * i / (MOSAIC_TILES - 1));
+                    if(gray) {
+                         img.getRaster().getSamples(x, y, tw, th, 0, tile);
+                         mosaic.getRaster().setSamples(j * tw, i * th, tw, th, 0, tile);
+                    } else {
+                         img.getRGB(x, y, tw, th, tile, 0, tw);
+                         mosaic.setRGB(j * tw, i * th, tw, th, tile, 0, tw);
+                    }
+               }
+          }
+          return encodeSmaller(mosaic, new ByteArrayOutputStream(), new ByteArrayOutputStream());
+     }
+     
+     /**
+      * Encode an image to a limited stream
+      * @param format {@code jpeg} or {@code png}
+      * @return {@code true} if the image was completely written, or {@code false}
+      *     if the stream's limit was reached first
+      */
+     private boolean writeLimited(BufferedImage img, String format, LimitedOutputStream os) throws IOException {
+          try {
+               if(format.equals("jpeg"))
+                    writeJpeg(img, os);
+               else
+                    writePng(img, os);
+          } catch(IOException e) {
+               if(os.isAborted())
+                    return false;
+               throw e;
+          }
+          return true;
+     }
+     
+     /** Encode an image as Jpeg using the selected compression quality */
+     private void writeJpeg(RenderedImage img, OutputStream os) throws IOException {
+          ImageWriter iwJpg = ImageIO.getImageWritersByFormatName("jpeg").next();
+          ImageWriteParam iwpJpg = iwJpg.getDefaultWriteParam();
+          iwpJpg.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+          iwpJpg.setCompressionQuality(compQual);
+          long[] m = Metrics.mark();
+          try {
+               writeImage(iwJpg, iwpJpg, img, os);
+          } finally {
+               Metrics.add(Metrics.ENCODE_JPEG, m);
+          }
+     }
+     
+     /**
+      * Encode an image as PNG, with the ImageIO writer or, if a deflate
+      * level was selected, with {@link PngEncoder}. Processors not already
+      * used by image worker threads are used to compress blocks of
+      * the image in parallel.
+      */
+     private void writePng(RenderedImage img, OutputStream os) throws IOException {
+          long[] m = Metrics.mark();
+          try {
+               if(pngLevel >= 0) {
+                    int blocks = Runtime.getRuntime().availableProcessors() / Math.max(threads, 1);
+                    new PngEncoder(pngLevel, pngFilter, blocks, ENCODERS).write(img, os);
+                    return;
+               }
+               ImageWriter iwPng = ImageIO.getImageWritersByFormatName("png").next();
+               writeImage(iwPng, iwPng.getDefaultWriteParam(), img, os);
+          } finally {
+               Metrics.add(Metrics.ENCODE_PNG, m);
+          }
+     }
+     
+     /**
+      * Encode an image with an ImageIO writer.
+      * The data is cached in memory rather than in a temporary file, so
+      * nothing is left behind if the underlying stream aborts the write.
+      */
+     private void writeImage(ImageWriter iw, ImageWriteParam iwp, RenderedImage img, OutputStream os) throws IOException {
+          ImageOutputStream ios = new MemoryCacheImageOutputStream(os);
+          boolean done = false;
+          try {
+               iw.setOutput(ios);
+               iw.write(null, new IIOImage(img, null, null), iwp);
+               ios.close();
+               done = true;
+          } finally {
+               iw.dispose();
+               if(!done) {
+                    try { ios.close(); }
+                    catch(IOException e) { } // Already failing
+               }
+          }
+     }
+     
+     /**
+      * Size of the image data embedded in the SVG file, found from the
+      * length of the base64 encoding without decoding it.
+      * @param imgString
+      * @return Size of the decoded data (bytes)
+      * @throws EmbedAndCropException The format or encoding isn't supported
+      */
+     private long getEmbeddedImageSize(String imgString) throws EmbedAndCropException {
+         return DataUriCodec.decodedLength(imgString, getEmbeddedPayloadStart(imgString));
+     }
+     
+     /**
+      * Read a BufferedImage from image data embedded in the SVG file.
+      * Following the SVG standard, PNG and Jpeg images are supported.
+      * Requires base64 encoding. Transparency is not supported.
+      * @param imgString
+      * @return 
+      * @throws EmbedAndCropException 
+      */
+     private BufferedImage readEmbeddedImageData(String imgString) throws EmbedAndCropException {
+         int start = getEmbeddedPayloadStart(imgString);
+         BufferedImage img;
+         try {
+            long[] m = Metrics.mark();
+            ImageInputStream iis = new MemoryCacheImageInputStream(DataUriCodec.openPayload(imgString, start));
+            img = ImageIO.read(iis); // Closes the stream, unless no reader was found
+            if (img == null)
+                iis.close();
+            Metrics.add(Metrics.DECODE, m);
+         } catch(Throwable t) {
+             throw new EmbedAndCropException(t.toString());
+         }
+         return RgbConverter.toRGB(img);
+     }
+     
+     /**
+      * Find the start of the base64 data in an embedded image's data URI
+      * @throws EmbedAndCropException The format or encoding isn't supported
+      */
+     private int getEmbeddedPayloadStart(String imgString) throws EmbedAndCropException {
+         if (!imgString.startsWith("data:image/png;") && !imgString.startsWith("data:image/jpeg;"))
+             throw new EmbedAndCropException("Unsupported image format: " + imgString.substring(0, 25));
+         int start = DataUriCodec.payloadStart(imgString);
+         if (start < 0) {
+             int type = imgString.indexOf(';') + 1;
+             throw new EmbedAndCropException("Unable to decode image: "
+                     + imgString.substring(type, Math.min(type + 25, imgString.length())));
+         }
+         return start;
+     }
+
+     /**
+      * Adjust placement of the image element to account for cropping
+      * 
+      * @param img The image element
+      * @param crop Fraction of image <em>actually</em> cropped from
+      *             each edge, {@code {top, bottom, left, right}};
+      *             note that this must account for rounding to pixels
+      */
+     private void adjustImgPlacement(Element img, double[] crop) {
+          double w = Double.valueOf(img.getAttribute("width"));
+          double h = Double.valueOf(img.getAttribute("height"));
+          double nx = 0;
+          double ny = 0;
+          try {
+              nx = Double.valueOf(img.getAttribute("x"));
+          } catch(java.lang.NumberFormatException e) {
+              // Presume this is the case where the location is not set, so we should leave it as 0.
+              System.err.println("No x coordinate set, default to 0.");
+          }
+          try {
+              ny = Double.valueOf(img.getAttribute("y"));
+          } catch(java.lang.NumberFormatException e) {
+              // Presume this is the case where the location is not set, so we should leave it as 0.
+              System.err.println("No y coordinate set, default to 0.");
+          }
+          nx = nx + crop[2] * w;
+          ny = ny + crop[0] * h;
+          double nw = w * (1 - crop[2] - crop[3]);
+          double nh = h * (1 - crop[0] - crop[1]);
+          img.setAttribute("x", String.valueOf(nx));
+          img.setAttribute("y", String.valueOf(ny));
+          img.setAttribute("width", String.valueOf(nw));
+          img.setAttribute("height", String.valueOf(nh));
+     }
+     
+     /**
+      * Transform the width and height attributes of an element to document space.
+      * @param e
+      * @param transforms Cached transforms for the element's document
+      * @return 
+      */
+     private double[] getElementDims(Element e, TransformCache transforms) {
+         double W = Double.parseDouble(e.getAttribute("width"));
+         double H = Double.parseDouble(e.getAttribute("height"));
+         double[][] points = {
+             {0, 0},
+             {W, 0},
+             {0, H}
+         };
+         AffineTransform toDoc = transforms.toDocumentSpace(e);
+         for(int i=0; i<points.length; i++)
+             toDoc.transform(points[i], 0, points[i], 0, 1);
+         if(points[1][1]-points[0][1] == 0)
+             W = Math.abs(points[1][0]-points[0][0]);
+         else
+             W = Math.sqrt(Math.pow(points[1][1]-points[0][1], 2) + Math.pow(points[1][0]-points[0][0], 2));
+         if(points[2][0]-points[0][0] == 0)
+             H = Math.abs(points[2][1]-points[0][1]);
+         else
+             H = Math.sqrt(Math.pow(points[2][1]-points[0][1], 2) + Math.pow(points[2][0]-points[0][0], 2));
+         return new double[] {W, H};
+     }
+        
+     /**
+      * Down-sample an image if above a maximum resolution
+      * 
+      * @param I Source image
+      * @param wh Image dimensions, width x height (physical units)
+      * @param rTarget Target resolution (pixels per physical unit)
+      * @param rMax Max resolution (pixels per physical unit)
+      * @return A resampled image with the lowest possible resolution 
+      *     not less than r, or the source image unchanged if the
+      *     source image resolution is less than or equal to r.
+      */
+     BufferedImage limitResolution(BufferedImage I, double[] wh, double rTarget, double rMax) throws EmbedAndCropException {
+         double[] s = getResampleScale(I.getWidth(), I.getHeight(), wh, rTarget, rMax);
+         if(s == null)
+             return I;
+         return resample(I, s[0], s[1]);
+     }
+     
+     /**
+      * Decide whether an image is above a maximum resolution
+      * 
+      * @param w Source image width (pixels)
+      * @param h Source image height (pixels)
+      * @param wh Image dimensions, width x height (physical units)
+      * @param rTarget Target resolution (pixels per physical unit)
+      * @param rMax Max resolution (pixels per physical unit)
+      * @return Scale factors to reach the target resolution, {@code {x, y}},
+      *     or {@code null} if the image should not be resampled
+      */
+     private double[] getResampleScale(int w, int h, double[] wh, double rTarget, double rMax) {
+         double rW = w / wh[0];
+         double rH = h / wh[1];
+         double sW = Math.min(rTarget / rW, 1);
+         double sH = Math.min(rTarget / rH, 1);
+         if(rW > rMax || rH > rMax) // Does not assume isotropic resolution
+             return new double[] {sW, sH};
+         return null;
+     }
+     
+     /**
+      * Scale an image with the selected resampling filter.
+      * Processors not already used by image worker threads are used to
+      * resample strips of the image in parallel.
+      */
+     private BufferedImage resample(BufferedImage I, double sW, double sH) throws EmbedAndCropException {
+         System.err.printf("Downsampling by factor of %1$.3f x %2$.3f .\n", sW, sH);
+         int strips = Runtime.getRuntime().availableProcessors() / Math.max(threads, 1);
+         long[] m = Metrics.mark();
+         BufferedImage R = new Resampler(resampleKernel, strips, ENCODERS).resample(I, sW, sH);
+         Metrics.add(Metrics.RESAMPLE, m);
+         return R;
+     }
+     
+     /**
+      * Get the fraction of image that should be cropped off each side
+      * @param img The image element
+      * @param clip The clip-path element
+      * @return Fraction of image to crop from each edge, {@code {top, bottom, left, right}}
+      */
+     double[] getCropFraction(Element img, Element clip) throws EmbedAndCropException {
+          double[] imgBounds = getRectBounds(img);
+          if(VERBOSE)
+            System.err.println("Image bounds: (" + imgBounds[0] + "," + imgBounds[2] + "); (" + imgBounds[1] + "," + imgBounds[3] + ")");
+          double[][] clipPoints = getClipPoints(clip);
+          double[] cf = {1,1,1,1};
+          if(clipPoints == null || clipPoints.length == 0)
+               for(int i=0; i<4; i++)
+                    cf[i] = 0;
+          for(int i=0; i<clipPoints.length; i++) {
+               double[] pf = scaleToRectFraction(
+                    distanceFromRect(clipPoints[i], imgBounds), imgBounds);
+               for(int j=0; j<4; j++)
+                         cf[j] = Math.min(cf[j], pf[j]);
+          }
+          if(VERBOSE)
+            System.err.println("Top clip, " + cf[0] + "; Bottom clip, " + cf[1] + "; Left clip, " + cf[2] + "; Right clip, " + cf[3]);
+          return cf;
+     }
+     
+     /**
+      * Is a point within a rectangle (edges excluded)?
+      * 
+      * @param p {@code {x,y}}
+      * @param r Bounding points of the rectangle, {@code {x0, x1, y0, y1}}
+      */
+     private boolean isPointInRect(double[] p, double[] r) {
+          return ((p[0] < r[0] && p[0] > r[1]) || (p[0] < r[1] && p[0] > r[0]))
+               && ((p[1] < r[2] && p[1] > r[3]) || (p[1] < r[3] && p[1] > r[2]));
+     }
+     
+     /**
+      * How far is a point from each edge of a rectangle?
+      * 
+      * @param p {@code {x,y}}
+      * @param r Bounding points of the rectangle, {@code {x0, x1, y0, y1}}
+      * @return Distance from each edge (negative if point is on exterior side of the edge),
+      *         {@code {top, bottom, left, right}}
+      */
+     private double[] distanceFromRect(double[] p, double[] r) {
+          double top = Math.min(r[2], r[3]);
+          double bot = Math.max(r[2], r[3]);
+          double rit = Math.max(r[0], r[1]);
+          double lef = Math.min(r[0], r[1]);
+          double[] result =
+               { p[1] - top, bot - p[1],
+                 p[0] - lef, rit - p[0] };
+          return result;
+     }
+     
+     /**
+      * Scale a set of distances from rectangle edges by the width and height of the rectangle.
+      * 
+      * @param d Absolute distances, {@code {top, bottom, left, right}}
+      * @param r Bounding points of the rectangle, {@code {x0, x1, y0, y1}}
+      * @return Relative distances, {@code {top/height, bottom/height, left/width, right/width}}
+      */
+     private double[] scaleToRectFraction(double[] d, double[] r) {
+          d[0] = d[0] / Math.abs(r[2] - r[3]);
+          d[1] = d[1] / Math.abs(r[2] - r[3]);
+          d[2] = d[2] / Math.abs(r[0] - r[1]);
+          d[3] = d[3] / Math.abs(r[0] - r[1]);
+          return d;
+     }
+     
+     /**
+      * Get the minimum distance between a pont and a line defined by two other points
+      * 
+      * @param lp0 1st point on the line, {@code {x,y}}
+      * @param lp1 2nd point on the line, {@code {x,y}}
+      * @param x How far is <em>this</em> point from the line, {@code {x,y}}
+      * @return Distance of point {@code x} from the line
+      */
+     private double distanceFromLine(double[] lp0, double[] lp1, double[] x) {
+          double[] lpd = { lp1[0] - lp0[0], lp1[1] - lp0[1] };
+          double tMin = ( x[0]*lpd[0] + x[1]*lpd[1] - lp0[0]*lpd[0] - lp0[1]*lpd[1])
+               / (Math.pow(lpd[0], 2) + Math.pow(lpd[1], 2));
+          if(VERBOSE)
+            System.err.println("Min t: " + tMin);
+          double d2 = Math.pow(lp0[0] + tMin*(lp1[0] - lp0[0]) - x[0], 2)
+               + Math.pow(lp0[1] + tMin*(lp1[1] - lp0[1]) - x[1], 2);
+          if(VERBOSE)
+            System.err.println("r^2 = " + d2);
+          return Math.sqrt(d2);
+     }
+     
+     /**
+      * Extract the coordinates of a clip path
+      * @return {@code double[][] coordinates[point]{x,y}}
+      */
+     private double[][] getClipPoints(Element clip) throws EmbedAndCropException {
+          ArrayList<double[][]> pA = new ArrayList<double[][]>();
+          NodeList children = clip.getChildNodes();
+          for(int i=0; i<children.getLength(); i++) {
+               if(children.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                    Element child = (Element)children.item(i);
+                    String baseTransform = child.getAttribute("transform");
+                    double[][] p = null;
+                    if(child.getNodeName().equals("rect"))
+                         p = rectBoundsToPointList(getRectBounds(child));
+                    else
+                         throw new EmbedAndCropException(
+                              "Can't get points from element type " + child.getNodeName()); /////
+                    if(p != null) {
+                         if(baseTransform != null && !baseTransform.equals("")) {
+                              AffineTransform at = TransformCache.parseTransform(baseTransform);
+                              for(int j=0; j<4; j++)
+                                   at.transform(p[j], 0, p[j], 0, 1);
+                         }
+                         pA.add(p);
+                    }
+               }
+          }
+          
+          int n = 0;
+          for(int i=0; i<pA.size(); i++)
+               n += pA.get(i).length;
+          double[][] points = new double[n][2];
+          n = 0;
+          for(int i=0; i<pA.size(); i++) {
+               double[][] p = pA.get(i);
+               System.arraycopy(p, 0, points, 0, p.length);
+               n += p.length;
+          }
+          return points;
+     }
+     
+     /**
+      * Get the points along a path  ////Not working
+      * @return {@code double[point][{x,y}]}
+      */
+     private double[][] getPathPointList(Element path) throws EmbedAndCropException {
+          if(path == null)
+               throw new EmbedAndCropException("Null path");
+          String d = path.getAttribute("d");
+          if(d == null || d.equals(""))
+               throw new EmbedAndCropException("Empty path");
+          String[] dd = d.split("[^\\d\\.]");
+          int n = 0;
+          for(int i=0; i<dd.length; i++)
+               if(!dd[i].equals("")) n++;
+          
+          double[][] p = new double[n/2][2];
+          
+          return p;
+     }
+     
+     /**
+      * Get the boundaries of a rect element (or similar) without transformation
+      * 
+      * @return An array: {@code {x0, x1, y0, y1}}
+      */
+     private double[] getRectBounds(Element e) {
+          double[] p0 = {new Double(e.getAttribute("x")), new Double(e.getAttribute("y"))};
+          double[] p1 = {p0[0] + new Double(e.getAttribute("width")),
+               p0[1] + new Double(e.getAttribute("height"))};
+          double[] r = {p0[0], p1[0], p0[1], p1[1]};
+          return r;
+     }
+     
+     /**
+      * Convert rect boundary points to a list of corner points
+      * @param b {@code {x0, x1, y0, y1}}, as returned by {@link #getRectBounds}
+      * @return {@code double[point][{x,y}]}
+      */
+     private double[][] rectBoundsToPointList(double[] b) {
+          double[][] p = new double[4][2];
+          p[0][0] = b[0]; p[0][1] = b[2];
+          p[1][0] = b[0]; p[1][1] = b[3];
+          p[2][0] = b[1]; p[2][1] = b[2];
+          p[3][0] = b[1]; p[3][1] = b[3];
+          return p;
+     }
+     
+     /** Get the clipping path of an image */
+     Element getClipPath(Element img, DocumentIndex index) {
+          String clip = getClipId(img);
+          if(clip == null)
+               return null;
+          return index.getClipPath(clip);
+     }
+     
+     /** Get the id of the clipping path of an image, or {@code null} if there is none */
+     String getClipId(Element img) {
+          String clip = DocumentIndex.referencedId(img.getAttribute("clip-path"));
+          if(clip == null)
+               return null;
+          if(VERBOSE)
+              System.err.println("Image " + img.getAttribute("xlink:href") + " has clip-path " + clip);
+          else
+              System.err.println("Image has clip-path " + clip);
+          return clip;
+     }
+     
+     /** Read an XML file and return a DOM */
+     Document readSVG(File f) throws EmbedAndCropException {
+          Document svg;
+          DocumentBuilder db;
+          try {
+               db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+          } catch(ParserConfigurationException e)
+          { throw new EmbedAndCropException("Can't deal with XML: " + e.getMessage()); }
+          try{ 
+               svg = db.parse(f);
+          } catch(Throwable t)
+          { throw new EmbedAndCropException("Can't read file: " + t.getMessage()); }
+          return svg;
+     }
+     
+     /** Read XML from a stream and return a DOM */
+     Document readSVG(InputStream is) throws EmbedAndCropException {
+          try {
+               return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
+          } catch(ParserConfigurationException e) {
+               throw new EmbedAndCropException("Can't deal with XML: " + e.getMessage());
+          } catch(Throwable t) {
+               throw new EmbedAndCropException("Can't read input: " + t.getMessage());
+          }
+     }
+     
+     // -- Helper classes --
+     
+     /**
+      * Work needed to load and encode the data for one image element.
+      * All values are read from the DOM before the job is run.
+      */
+     class ImageJob implements Callable<EncodedImage> {
+          
+          private final Element img;
+          private final String href;
+          private final String basePath;
+          private final double[] crop;
+          private final double[] dims;
+          private final Map<String, Future<EncodedImage>> results;
+          private final Metrics.Record metrics;
+          
+          ImageJob(Element img, String href, String basePath, double[] crop, double[] dims,
+                  Map<String, Future<EncodedImage>> results, Metrics.Record metrics) {
+               this.img = img;
+               this.href = href;
+               this.basePath = basePath;
+               this.crop = crop;
+               this.dims = dims;
+               this.results = results;
+               this.metrics = metrics;
+          }
+          
+          /**
+           * Process the image, or wait for the result of an identical job
+           * @return The encoded image, or {@code null} if the element should be skipped
+           */
+          @Override
+          public EncodedImage call() throws EmbedAndCropException {
+               if(metrics == null)
+                    return run();
+               Metrics.Record prev = Metrics.enter(metrics);
+               metrics.start();
+               try {
+                    return run();
+               } finally {
+                    metrics.finish();
+                    Metrics.exit(prev);
+               }
+          }
+          
+          private EncodedImage run() throws EmbedAndCropException {
+               if(href.startsWith("data:image")) {
+                    if(!checkEmbeddedSize(href, embeddedImageSizeMin)) {
+                         Metrics.result("skipped");
+                         return null;
+                    }
+                    if(results == null)
+                         return processEmbedded();
+                    return memoize("data:" + DigestUtils.sha256Hex(href), new Callable<EncodedImage>() {
+                         @Override
+                         public EncodedImage call() throws EmbedAndCropException {
+                              return processEmbedded();
+                         }
+                    });
+               }
+               final File imf = resolveImageFile(href, basePath);
+               if(results == null)
+                    return processLinked(imf);
+               String source;
+               try {
+                    source = imf.getCanonicalPath();
+               } catch(IOException e) {
+                    throw new EmbedAndCropException("Can't read file link: " + href);
+               }
+               return memoize(source, new Callable<EncodedImage>() {
+                    @Override
+                    public EncodedImage call() throws EmbedAndCropException {
+                         return processLinked(imf);
+                    }
+               });
+          }
+          
+          /**
+           * Run a task unless an identical job has already run it, and return its result
+           * @param source The data URI or resolved path of the image
+           */
+          private EncodedImage memoize(String source, Callable<EncodedImage> task) throws EmbedAndCropException {
+               String key = getCacheParams(crop, dims) + " " + source;
+               FutureTask<EncodedImage> ft = new FutureTask<EncodedImage>(task);
+               Future<EncodedImage> prev = results.putIfAbsent(key, ft);
+               if(prev != null) {
+                    System.err.println("Reusing processed image data");
+                    EncodedImage enc = awaitJob(prev);
+                    Metrics.result(enc == null ? "skipped" : "reused");
+                    if(enc != null)
+                         Metrics.output(enc.href);
+                    return enc;
+               }
+               ft.run();
+               return awaitJob(ft);
+          }
+          
+          private EncodedImage processEmbedded() throws EmbedAndCropException {
+               BufferedImage I = loadEmbeddedImageData(href);
+               if(I == null) { // Skip further processing if no data loaded
+                    Metrics.result("skipped");
+                    return null;
+               }
+               return putImgData(I, crop, dims);
+          }
+          
+          private EncodedImage processLinked(File imf) throws EmbedAndCropException {
+               Metrics.input(imf.length());
+               String key = cache == null ? null : cache.key(imf, getCacheParams(crop, dims));
+               if(key != null) {
+                    EncodedImage enc = cache.get(key);
+                    if(enc != null) {
+                         System.err.println("Using cached image data for " + imf.getName());
+                         Metrics.result("cached");
+                         Metrics.output(enc.href);
+                         return enc;
+                    }
+               }
+               EncodedImage enc = putRegionData(imf, crop, dims);
+               if(enc == null)
+                    enc = putImgData(loadImageFile(imf), crop, dims);
+               if(key != null)
+                    cache.put(key, enc);
+               return enc;
+          }
+     }
+     
+     /** Processing of one whole document, for {@link #measure} */
+     private abstract static class DocumentTask {
+          abstract void run() throws EmbedAndCropException;
+     }
+     
+     /** Encoded image data ready to be written to an image element */
+     static class EncodedImage {
+          
+          /** The data URI */
+          final String href;
+          /** Fraction actually cropped from each edge, {@code {top, bottom, left, right}} */
+          final double[] crop;
+          
+          EncodedImage(String href, double[] crop) {
+               this.href = href;
+               this.crop = crop;
+          }
+     }
+}
@@ -0,0 +1,232 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+import javax.swing.JOptionPane;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Long-running server for the Inkscape extension.
+ *
+ * <p> Starting a JVM and loading ImageJ and the ImageIO plugins can take
+ * longer than embedding the images in a typical figure. The server stays
+ * running, so each request reuses a warmed-up JVM. The Inkscape wrapper
+ * script tries the server first, and starts a new JVM as before if no
+ * server is running.
+ *
+ * <p> The server only listens on the loopback interface. When it starts,
+ * it writes its port and a random token to {@link #getServerFile()}, and
+ * clients must send the token with each request. On POSIX file systems
+ * only the user can read the file; elsewhere, e.g. on Windows, it gets
+ * the default permissions of the user's home directory. The server exits
+ * when it has been idle for a while.
+ *
+ * <p> Protocol, one request per connection, UTF-8 lines:
+ * <pre>
+ * client: SVGEC 2 &lt;token&gt;
+ * server: READY | REJECTED
+ * client: &lt;argument&gt;
+ *         ...
+ *         (blank line)
+ * server: OK | CANCELED | ERROR &lt;message&gt;
+ * </pre>
+ * {@code REJECTED} means the header did not match, for example because the
+ * client read the token of a server that has since been replaced.
+ * Arguments are the same as for {@link EmbedAndCrop#runInkscapeExtension}.
+ * Requests are handled one at a time, since they may show dialogs.
+ * A client that gets no {@code READY} soon, e.g. because the server is
+ * busy or its port now belongs to another program, gives up and runs
+ * the request itself without sending the arguments. The server only runs
+ * complete requests, so the request is never run twice.
+ *
+ * @author Benjamin Nanes
+ */
+public class EmbedAndCropServer {
+
+     // -- Fields --
+
+     public static final int PROTOCOL = 2;
+     private static final String MAGIC = "SVGEC";
+     /** Time to wait for each line of a request (ms) */
+     private static final int READ_TIMEOUT = 10000;
+     private static final Charset UTF8 = Charset.forName("UTF-8");
+
+     private final ServerSocket server;
+     private final String token;
+     private final long idleMillis;
+
+     // -- Constructors --
+
+     /**
+      * @param port Port to listen on, or 0 for any free port
+      * @param idleMinutes Exit after this long without a request
+      */
+     public EmbedAndCropServer(int port, int idleMinutes) throws IOException {
+          server = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+          byte[] t = new byte[16];
+          new SecureRandom().nextBytes(t);
+          token = new String(Hex.encodeHex(t));
+          idleMillis = idleMinutes * 60000L;
+          MappedImageInputStream.setMapping(false); // Don't hold on to linked files between requests
+     }
+
+     // -- Methods --
+
+     /**
+      * Start the server
+      * @param args <code>[-port &lt;<em>port</em>&gt;] [-idle &lt;<em>minutes</em>&gt;]</code>;
+      *     by default any free port is used, and the server exits after 60 idle minutes
+      */
+     public static void main(String[] args) {
+          int port = 0;
+          int idle = 60;
+          for(int i=0; i<args.length - 1; i++) {
+               if(args[i].equals("-port"))
+                    port = Integer.parseInt(args[++i]);
+               else if(args[i].equals("-idle"))
+                    idle = Integer.parseInt(args[++i]);
+          }
+          try {
+               EmbedAndCropServer s = new EmbedAndCropServer(port, idle);
+               s.serve();
+          } catch(IOException e) {
+               e.printStackTrace();
+               System.exit(1);
+          }
+          System.exit(0);
+     }
+
+     /** File with the port and token of the running server */
+     public static File getServerFile() {
+          return new File(new File(System.getProperty("user.home"), ".svg-embed-and-crop"), "server");
+     }
+
+     /** Accept requests until the server has been idle for too long */
+     public void serve() throws IOException {
+          final File f = getServerFile();
+          writeServerFile(f);
+          Runtime.getRuntime().addShutdownHook(new Thread() {
+               @Override
+               public void run() { removeServerFile(f); }
+          });
+          warmUp();
+          System.err.println("Listening on port " + server.getLocalPort());
+          server.setSoTimeout((int)Math.min(idleMillis, Integer.MAX_VALUE));
+          try {
+               while(true) {
+                    Socket client;
+                    try {
+                         client = server.accept();
+                    } catch(SocketTimeoutException e) {
+                         System.err.println("Idle; shutting down.");
+                         break;
+                    }
+                    try {
+                         handle(client);
+                    } catch(IOException e) {
+                         System.err.println("Request failed: " + e.getMessage());
+                    } finally {
+                         client.close();
+                    }
+               }
+          } finally {
+               removeServerFile(f);
+               server.close();
+          }
+     }
+
+     // -- Helper methods --
+
+     /** Read a request, run it, and send the result */
+     private void handle(Socket client) throws IOException {
+          client.setSoTimeout(READ_TIMEOUT);
+          BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), UTF8));
+          OutputStream os = client.getOutputStream();
+          String header = in.readLine();
+          if(header == null || !header.equals(MAGIC + " " + PROTOCOL + " " + token)) {
+               reply(os, "REJECTED");
+               return;
+          }
+          reply(os, "READY");
+          List<String> args = new ArrayList<String>();
+          String line;
+          while((line = in.readLine()) != null && !line.isEmpty())
+               args.add(line);
+          if(line == null)
+               return; // Incomplete request; the client will run it itself
+          EmbedAndCrop eac = new EmbedAndCrop();
+          try {
+               eac.parseArgs(args.toArray(new String[0]));
+               reply(os, "OK");
+          } catch(Throwable t) {
+               t.printStackTrace();
+               while(t.getCause() != null) // parseArgs wraps everything in RuntimeExceptions
+                    t = t.getCause();
+               String msg = t.getMessage() == null ? t.toString() : t.getMessage();
+               if(msg.contains("Canceled by user")) {
+                    reply(os, "CANCELED");
+                    return;
+               }
+               if(!GraphicsEnvironment.isHeadless())
+                    JOptionPane.showMessageDialog(null, msg, "Error: " + msg, JOptionPane.ERROR_MESSAGE);
+               reply(os, "ERROR " + msg.replace('\n', ' '));
+          }
+     }
+
+     private static void reply(OutputStream os, String s) throws IOException {
+          Writer w = new OutputStreamWriter(os, UTF8);
+          w.write(s + "\n");
+          w.flush();
+     }
+
+     /**
+      * Write the port and token, readable only by the user on POSIX
+      * file systems, or with the directory's default permissions elsewhere
+      */
+     private void writeServerFile(File f) throws IOException {
+          f.getParentFile().mkdirs();
+          f.delete();
+          try {
+               Files.createFile(f.toPath(), PosixFilePermissions.asFileAttribute(
+                       PosixFilePermissions.fromString("rw-------")));
+          } catch(UnsupportedOperationException e) {
+               // Not a POSIX file system; rely on the permissions of the home directory
+          }
+          Files.write(f.toPath(), (server.getLocalPort() + " " + token + "\n").getBytes(UTF8));
+     }
+
+     /** Remove the server file, unless another server has replaced it */
+     private void removeServerFile(File f) {
+          try {
+               if(f.isFile() && new String(Files.readAllBytes(f.toPath()), UTF8).contains(token))
+                    f.delete();
+          } catch(IOException e) { }
+     }
+
+     /** Load the classes and plugins the first request would otherwise wait for */
+     private static void warmUp() {
+          ImageIO.getImageReadersByFormatName("png");
+          ImageIO.getImageWritersByFormatName("jpeg");
+          try {
+               Class.forName("ij.IJ");
+          } catch(ClassNotFoundException e) { }
+     }
+
+}
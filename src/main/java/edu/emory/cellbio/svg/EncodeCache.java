@@ -0,0 +1,201 @@
+package edu.emory.cellbio.svg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * On-disk cache of encoded images, shared across runs.
+ *
+ * <p> Entries are keyed by a hash of the linked file's path, modification
+ * time, size, and content, together with every parameter that affects the
+ * encoded result (crop, resampling, image type, and quality). Each entry
+ * stores the final data URI, which includes the MIME type, and the fraction
+ * actually cropped from each edge, so a hit skips decoding and encoding
+ * entirely.
+ *
+ * <p> Entries are written to a temporary file and then renamed, so
+ * concurrent runs sharing a cache directory never read a partial entry.
+ * A hit updates the entry's modification time, and when the total size
+ * of the cache exceeds its limit the least recently used entries are
+ * removed. Unreadable entries are treated as misses and deleted.
+ *
+ * @author Benjamin Nanes
+ */
+class EncodeCache {
+
+     // -- Fields --
+
+     /**
+      * Changes whenever the entry format or the encoder output changes, so
+      * entries written by older versions miss. 2: reduced PNG color types,
+      * direct RGB decoding, lossless Jpeg crops, and files embedded as is.
+      */
+     private static final int VERSION = 2;
+     private static final String SUFFIX = ".entry";
+
+     private final File dir;
+     private final long maxBytes;
+
+     // -- Constructors --
+
+     /**
+      * @param dir Cache directory; created if it does not exist
+      * @param maxBytes Total size of entries to keep (bytes)
+      */
+     EncodeCache(File dir, long maxBytes) throws EmbedAndCropException {
+          this.dir = dir;
+          this.maxBytes = maxBytes;
+          dir.mkdirs();
+          if(!dir.isDirectory() || !dir.canWrite())
+               throw new EmbedAndCropException("Can't write to cache directory: " + dir.getPath());
+          evict();
+     }
+
+     // -- Methods --
+
+     /**
+      * Build the key for a linked image file
+      * @param f The linked file; its content is hashed, straight from the mapped file
+      * @param params Every processing parameter that affects the encoded image
+      */
+     String key(File f, String params) throws EmbedAndCropException {
+          try {
+               final MessageDigest md = DigestUtils.getSha256Digest();
+               MappedImageInputStream.forEachChunk(f, new MappedImageInputStream.ChunkConsumer() {
+                    @Override
+                    public void accept(ByteBuffer chunk) {
+                         md.update(chunk);
+                    }
+               });
+               String content = new String(Hex.encodeHex(md.digest()));
+               return DigestUtils.sha256Hex(VERSION + "\n" + f.getCanonicalPath() + "\n"
+                       + f.lastModified() + "\n" + f.length() + "\n" + content + "\n" + params);
+          } catch(IOException e) {
+               throw new EmbedAndCropException("Problem reading image file; " + e);
+          }
+     }
+
+     /** Get a cached image, or {@code null} if there is no valid entry for the key */
+     EmbedAndCropProcessor.EncodedImage get(String key) {
+          File f = new File(dir, key + SUFFIX);
+          if(!f.isFile())
+               return null;
+          DataInputStream in = null;
+          try {
+               in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+               if(in.readInt() != VERSION)
+                    throw new IOException("Wrong version");
+               double[] crop = new double[4];
+               for(int i=0; i<4; i++)
+                    crop[i] = in.readDouble();
+               byte[] href = new byte[in.readInt()];
+               in.readFully(href);
+               f.setLastModified(System.currentTimeMillis());
+               return new EmbedAndCropProcessor.EncodedImage(new String(href, "US-ASCII"), crop);
+          } catch(IOException e) {
+               closeQuietly(in);
+               in = null;
+               f.delete();
+               return null;
+          } finally {
+               closeQuietly(in);
+          }
+     }
+
+     /**
+      * Store an encoded image. Problems writing to the cache
+      * are reported, but are not fatal.
+      */
+     void put(String key, EmbedAndCropProcessor.EncodedImage img) {
+          File tmp = null;
+          DataOutputStream out = null;
+          try {
+               tmp = File.createTempFile(key, ".tmp", dir);
+               out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+               out.writeInt(VERSION);
+               for(int i=0; i<4; i++)
+                    out.writeDouble(img.crop[i]);
+               byte[] href = img.href.getBytes("US-ASCII");
+               out.writeInt(href.length);
+               out.write(href);
+               out.close();
+               out = null;
+               File f = new File(dir, key + SUFFIX);
+               if(!tmp.renameTo(f)) {
+                    f.delete();
+                    if(!tmp.renameTo(f))
+                         throw new IOException("Can't rename " + tmp.getName());
+               }
+               tmp = null;
+          } catch(IOException e) {
+               System.err.println("Can't write to image cache: " + e.getMessage());
+          } finally {
+               if(out != null) {
+                    try { out.close(); }
+                    catch(IOException e) { }
+               }
+               if(tmp != null)
+                    tmp.delete();
+          }
+          evict();
+     }
+
+     // -- Helper methods --
+
+     /** Remove least recently used entries until the cache is within its size limit */
+     private synchronized void evict() {
+          File[] entries = dir.listFiles(new FileFilter() {
+               @Override
+               public boolean accept(File f) {
+                    return f.getName().endsWith(SUFFIX);
+               }
+          });
+          if(entries == null)
+               return;
+          long total = 0;
+          for(File f : entries)
+               total += f.length();
+          if(total <= maxBytes)
+               return;
+          final long[] times = new long[entries.length];
+          Integer[] order = new Integer[entries.length];
+          for(int i=0; i<entries.length; i++) {
+               times[i] = entries[i].lastModified();
+               order[i] = i;
+          }
+          Arrays.sort(order, new Comparator<Integer>() {
+               @Override
+               public int compare(Integer a, Integer b) {
+                    return Long.compare(times[a], times[b]);
+               }
+          });
+          for(int i=0; i<order.length && total > maxBytes; i++) {
+               File f = entries[order[i]];
+               long len = f.length();
+               if(f.delete())
+                    total -= len;
+          }
+     }
+
+     private static void closeQuietly(InputStream is) {
+          if(is == null)
+               return;
+          try { is.close(); }
+          catch(IOException e) { }
+     }
+
+}
@@ -0,0 +1,810 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Crop a Jpeg file without decoding its pixels, as {@code jpegtran -crop}
+ * does.
+ *
+ * <p> The Huffman-coded DCT coefficients are decoded, the blocks outside
+ * the crop are dropped, and the rest are coded again with Huffman tables
+ * optimized for them. The quantized coefficients are not changed, so
+ * there is no generation loss, and no inverse or forward DCT is done.
+ * The left and top edges of the crop must fall on MCU boundaries, i.e.
+ * multiples of {@link #getMcuWidth()} and {@link #getMcuHeight()}; the
+ * right and bottom edges can be any pixel.
+ *
+ * <p> Only baseline (and extended, 8-bit Huffman) files with a single
+ * scan are handled; {@link #open} returns {@code null} for progressive,
+ * arithmetic-coded, 12-bit, lossless, or multi-scan files. The JFIF,
+ * ICC profile, and Adobe color transform segments are kept; Exif and
+ * other metadata are dropped, as they are when the image is re-encoded,
+ * so viewers don't apply an Exif orientation that ImageIO ignores.
+ *
+ * @author Benjamin Nanes
+ */
+public class JpegCropper {
+
+     // -- Fields --
+
+     private static final int SOI = 0xd8;
+     private static final int EOI = 0xd9;
+     private static final int SOS = 0xda;
+     private static final int DQT = 0xdb;
+     private static final int DHT = 0xc4;
+     private static final int DRI = 0xdd;
+     private static final int RST0 = 0xd0;
+     /** Bits looked up at once when decoding Huffman codes */
+     private static final int LOOKAHEAD = 9;
+
+     private final byte[] data;
+     /** Segments copied as-is, in order, before the frame header */
+     private final List<int[]> kept = new ArrayList<int[]>();
+     private int frameStart;
+     private int width;
+     private int height;
+     private int[] compId;
+     private int[] hSamp;
+     private int[] vSamp;
+     private int hMax = 1;
+     private int vMax = 1;
+     private final HuffTable[] dcTables = new HuffTable[4];
+     private final HuffTable[] acTables = new HuffTable[4];
+     private int restartInterval = 0;
+     /** Components of the scan, as indices in the frame */
+     private int[] scanComp;
+     private int[] scanDc;
+     private int[] scanAc;
+     private int scanHeaderStart;
+     private int scanDataStart;
+
+     // -- Constructors --
+
+     private JpegCropper(byte[] data) {
+          this.data = data;
+     }
+
+     // -- Methods --
+
+     /**
+      * Read a Jpeg file's headers
+      * @return The cropper, or {@code null} if the file isn't a Jpeg file
+      *     this class handles
+      */
+     public static JpegCropper open(File f) throws IOException {
+          JpegCropper jc = new JpegCropper(Files.readAllBytes(f.toPath()));
+          try {
+               return jc.parse() ? jc : null;
+          } catch(IndexOutOfBoundsException e) {
+               return null; // Truncated
+          }
+     }
+
+     /**
+      * Read the Exif orientation of a Jpeg file, from its headers
+      * @return The orientation, from 1 to 8; 1, i.e. not rotated or
+      *     flipped, if the file has none
+      */
+     public static int getExifOrientation(File f) throws IOException {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+          try {
+               if(in.readUnsignedShort() != 0xff00 + SOI)
+                    return 1;
+               while(true) {
+                    int marker = in.readUnsignedShort();
+                    if((marker >> 8) != 0xff || marker == 0xff00 + SOS || marker == 0xff00 + EOI)
+                         return 1;
+                    byte[] seg = new byte[in.readUnsignedShort() - 2];
+                    in.readFully(seg);
+                    if(marker == 0xffe1 && seg.length > 14 && new String(seg, 0, 6, "ISO-8859-1").equals("Exif\0\0"))
+                         return exifOrientation(seg, 6);
+               }
+          } catch(EOFException e) {
+               return 1;
+          } finally {
+               in.close();
+          }
+     }
+
+     /** Image width, in pixels */
+     public int getWidth() {
+          return width;
+     }
+
+     /** Image height, in pixels */
+     public int getHeight() {
+          return height;
+     }
+
+     /** Width of a minimum coded unit, to which the left edge of a crop is aligned */
+     public int getMcuWidth() {
+          return scanComp.length == 1 ? 8 : 8 * hMax;
+     }
+
+     /** Height of a minimum coded unit, to which the top edge of a crop is aligned */
+     public int getMcuHeight() {
+          return scanComp.length == 1 ? 8 : 8 * vMax;
+     }
+
+     /**
+      * Write a region of the image as a Jpeg file
+      * @param region The region to keep; {@code x} and {@code y} must be
+      *     multiples of the MCU size
+      * @throws IOException The image data is corrupt, or can't be written
+      */
+     public void crop(Rectangle region, OutputStream os) throws IOException {
+          if(region.x % getMcuWidth() != 0 || region.y % getMcuHeight() != 0
+                  || region.isEmpty() || !new Rectangle(width, height).contains(region))
+               throw new IllegalArgumentException("Region not aligned to MCUs: " + region);
+          Blocks[] blocks = decode(region);
+          int[][] dcFreq = new int[4][257];
+          int[][] acFreq = new int[4][257];
+          encode(blocks, dcFreq, acFreq, null, null, null);
+          HuffTable[] dc = new HuffTable[4];
+          HuffTable[] ac = new HuffTable[4];
+          ByteArrayOutputStream dht = new ByteArrayOutputStream();
+          for(int t=0; t<4; t++) {
+               if(dcTables[t] != null && used(dcFreq[t]))
+                    dc[t] = HuffTable.optimal(dcFreq[t], 0, t, dht);
+               if(acTables[t] != null && used(acFreq[t]))
+                    ac[t] = HuffTable.optimal(acFreq[t], 1, t, dht);
+          }
+
+          ByteArrayOutputStream head = new ByteArrayOutputStream();
+          head.write(0xff);
+          head.write(SOI);
+          for(int[] seg : kept)
+               head.write(data, seg[0], seg[1]);
+          int len = u16(frameStart + 2);
+          byte[] sof = new byte[len + 2];
+          System.arraycopy(data, frameStart, sof, 0, sof.length);
+          sof[5] = (byte)(region.height >> 8);
+          sof[6] = (byte)region.height;
+          sof[7] = (byte)(region.width >> 8);
+          sof[8] = (byte)region.width;
+          head.write(sof);
+          head.write(0xff);
+          head.write(DHT);
+          head.write((dht.size() + 2) >> 8);
+          head.write(dht.size() + 2);
+          dht.writeTo(head);
+          head.write(data, scanHeaderStart, scanDataStart - scanHeaderStart);
+          head.writeTo(os);
+          BitWriter bw = new BitWriter(os);
+          encode(blocks, null, null, dc, ac, bw);
+          bw.flush();
+          os.write(0xff);
+          os.write(EOI);
+     }
+
+     // -- Helper methods --
+
+     /**
+      * Read the segments up to the image data
+      * @return {@code false} if the file isn't supported
+      */
+     private boolean parse() {
+          if(u8(0) != 0xff || u8(1) != SOI)
+               return false;
+          int pos = 2;
+          while(true) {
+               if(u8(pos) != 0xff)
+                    return false;
+               int marker = u8(pos + 1);
+               if(marker == 0xff) { // Fill byte
+                    pos++;
+                    continue;
+               }
+               if(marker == SOI || marker == EOI || (marker >= RST0 && marker < RST0 + 8))
+                    return false;
+               int len = u16(pos + 2);
+               int body = pos + 4;
+               if(marker == 0xc0 || marker == 0xc1) {
+                    if(u8(body) != 8)
+                         return false;
+                    frameStart = pos;
+                    height = u16(body + 1);
+                    width = u16(body + 3);
+                    int n = u8(body + 5);
+                    if(height == 0 || width == 0 || n < 1 || n > 4)
+                         return false;
+                    compId = new int[n];
+                    hSamp = new int[n];
+                    vSamp = new int[n];
+                    for(int i=0; i<n; i++) {
+                         compId[i] = u8(body + 6 + 3 * i);
+                         hSamp[i] = u8(body + 7 + 3 * i) >> 4;
+                         vSamp[i] = u8(body + 7 + 3 * i) & 15;
+                         if(hSamp[i] < 1 || hSamp[i] > 4 || vSamp[i] < 1 || vSamp[i] > 4)
+                              return false;
+                         hMax = Math.max(hMax, hSamp[i]);
+                         vMax = Math.max(vMax, vSamp[i]);
+                    }
+               } else if(marker >= 0xc0 && marker <= 0xcf && marker != DHT && marker != 0xc8) {
+                    return false; // Progressive, lossless, or arithmetic coding
+               } else if(marker == DHT) {
+                    for(int p=body; p<pos+2+len; ) {
+                         int tc = u8(p) >> 4;
+                         int th = u8(p) & 15;
+                         if(tc > 1 || th > 3)
+                              return false;
+                         int[] bits = new int[17];
+                         int count = 0;
+                         for(int i=1; i<=16; i++)
+                              count += bits[i] = u8(p + i);
+                         int[] vals = new int[count];
+                         for(int i=0; i<count; i++)
+                              vals[i] = u8(p + 17 + i);
+                         HuffTable t = new HuffTable(bits, vals);
+                         if(tc == 0)
+                              dcTables[th] = t;
+                         else
+                              acTables[th] = t;
+                         p += 17 + count;
+                    }
+               } else if(marker == DQT) {
+                    if(frameStart != 0)
+                         return false; // Tables are written before the frame header
+                    kept.add(new int[] {pos, len + 2});
+               } else if(marker == DRI) {
+                    restartInterval = u16(body);
+               } else if(marker == SOS) {
+                    return frameStart != 0 && parseScan(pos, len);
+               } else if(isKeptApp(marker, body)) {
+                    if(frameStart != 0)
+                         return false;
+                    kept.add(new int[] {pos, len + 2});
+               }
+               pos += 2 + len;
+          }
+     }
+
+     /** Is this a JFIF, ICC profile, or Adobe segment? */
+     private boolean isKeptApp(int marker, int body) {
+          if(marker == 0xe0)
+               return tag(body, "JFIF");
+          if(marker == 0xe2)
+               return tag(body, "ICC_PROFILE");
+          if(marker == 0xee)
+               return tag(body, "Adobe");
+          return false;
+     }
+
+     /** Read the scan header, and check that it's the only scan */
+     private boolean parseScan(int pos, int len) {
+          int body = pos + 4;
+          int n = u8(body);
+          if(n != compId.length)
+               return false; // Multi-scan files aren't handled
+          scanComp = new int[n];
+          scanDc = new int[n];
+          scanAc = new int[n];
+          for(int i=0; i<n; i++) {
+               int id = u8(body + 1 + 2 * i);
+               scanComp[i] = -1;
+               for(int c=0; c<compId.length; c++)
+                    if(compId[c] == id)
+                         scanComp[i] = c;
+               if(scanComp[i] < 0)
+                    return false;
+               scanDc[i] = u8(body + 2 + 2 * i) >> 4;
+               scanAc[i] = u8(body + 2 + 2 * i) & 15;
+               if(scanDc[i] > 3 || scanAc[i] > 3
+                       || dcTables[scanDc[i]] == null || acTables[scanAc[i]] == null)
+                    return false;
+          }
+          int p = body + 1 + 2 * n;
+          if(u8(p) != 0 || u8(p + 1) != 63 || u8(p + 2) != 0)
+               return false;
+          scanHeaderStart = pos;
+          scanDataStart = pos + 2 + len;
+          return true;
+     }
+
+     /**
+      * Find the orientation tag in the first IFD of Exif data
+      * @param tiff Start of the TIFF header
+      */
+     private static int exifOrientation(byte[] seg, int tiff) {
+          boolean le = seg[tiff] == 'I';
+          try {
+               int ifd = tiff + (int)exifInt(seg, tiff + 4, 4, le);
+               int n = (int)exifInt(seg, ifd, 2, le);
+               for(int i=0; i<n; i++) {
+                    int e = ifd + 2 + 12 * i;
+                    if(exifInt(seg, e, 2, le) == 0x0112) {
+                         int v = (int)exifInt(seg, e + 8, 2, le);
+                         return v >= 1 && v <= 8 ? v : 1;
+                    }
+               }
+          } catch(IndexOutOfBoundsException e) {
+               // Truncated
+          }
+          return 1;
+     }
+
+     private static long exifInt(byte[] b, int p, int size, boolean le) {
+          long v = 0;
+          for(int i=0; i<size; i++)
+               v |= (long)(b[p + i] & 0xff) << (8 * (le ? i : size - 1 - i));
+          return v;
+     }
+
+     /** Number of MCUs (or blocks, for a single-component scan) across the image */
+     private int mcusX() {
+          if(scanComp.length == 1) {
+               int c = scanComp[0];
+               return ceil(ceil(width * hSamp[c], hMax), 8);
+          }
+          return ceil(width, 8 * hMax);
+     }
+
+     /** Number of MCUs (or blocks, for a single-component scan) down the image */
+     private int mcusY() {
+          if(scanComp.length == 1) {
+               int c = scanComp[0];
+               return ceil(ceil(height * vSamp[c], vMax), 8);
+          }
+          return ceil(height, 8 * vMax);
+     }
+
+     /** Decode the coefficients of the blocks of the MCUs covering a region */
+     private Blocks[] decode(Rectangle region) throws IOException {
+          int n = scanComp.length;
+          int mx0 = region.x / getMcuWidth();
+          int my0 = region.y / getMcuHeight();
+          int mw = ceil(region.width, getMcuWidth());
+          int mh = ceil(region.height, getMcuHeight());
+          Blocks[] out = new Blocks[n];
+          for(int i=0; i<n; i++) {
+               int c = scanComp[i];
+               int bh = n == 1 ? 1 : hSamp[c];
+               int bv = n == 1 ? 1 : vSamp[c];
+               out[i] = new Blocks(mw * bh, mh * bv, bh, bv);
+          }
+          final int mcusX = mcusX();
+          BitReader br = new BitReader(data, scanDataStart);
+          int[] pred = new int[n];
+          short[] skip = new short[64];
+          int mcu = 0;
+          for(int my=0; my<my0+mh; my++) {
+               for(int mx=0; mx<mcusX; mx++) {
+                    if(restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                         br.restart();
+                         for(int i=0; i<n; i++)
+                              pred[i] = 0;
+                    }
+                    mcu++;
+                    boolean keep = my >= my0 && mx >= mx0 && mx < mx0 + mw;
+                    for(int i=0; i<n; i++) {
+                         Blocks b = out[i];
+                         for(int v=0; v<b.v; v++) {
+                              for(int h=0; h<b.h; h++) {
+                                   short[] dst = skip;
+                                   int off = 0;
+                                   if(keep) {
+                                        dst = b.coef;
+                                        off = b.offset((mx - mx0) * b.h + h, (my - my0) * b.v + v);
+                                   }
+                                   pred[i] = decodeBlock(br, dcTables[scanDc[i]], acTables[scanAc[i]], pred[i], dst, off);
+                              }
+                         }
+                    }
+               }
+          }
+          return out;
+     }
+
+     /**
+      * Decode one block
+      * @param pred The previous DC coefficient of the component
+      * @param dst Receives the coefficients, in zigzag order, with the DC
+      *     coefficient not differenced
+      * @return The block's DC coefficient
+      */
+     private static int decodeBlock(BitReader br, HuffTable dc, HuffTable ac, int pred, short[] dst, int off) throws IOException {
+          for(int k=0; k<64; k++)
+               dst[off + k] = 0;
+          int s = br.decode(dc);
+          if(s > 11)
+               throw new IOException("Corrupt Jpeg data");
+          pred += s == 0 ? 0 : extend(br.receive(s), s);
+          dst[off] = (short)pred;
+          for(int k=1; k<64; ) {
+               int rs = br.decode(ac);
+               int r = rs >> 4;
+               s = rs & 15;
+               if(s == 0) {
+                    if(r != 15)
+                         break;
+                    k += 16;
+                    continue;
+               }
+               k += r;
+               if(k > 63)
+                    throw new IOException("Corrupt Jpeg data");
+               dst[off + k++] = (short)extend(br.receive(s), s);
+          }
+          return pred;
+     }
+
+     /**
+      * Code the blocks, either counting the symbols used or writing them
+      * @param dcFreq Receives the DC symbol counts of each table, if {@code bw} is {@code null}
+      * @param acFreq Receives the AC symbol counts of each table, if {@code bw} is {@code null}
+      * @param dc DC tables, if writing
+      * @param ac AC tables, if writing
+      * @param bw Writes the codes, or {@code null} to count them
+      */
+     private void encode(Blocks[] blocks, int[][] dcFreq, int[][] acFreq,
+             HuffTable[] dc, HuffTable[] ac, BitWriter bw) throws IOException {
+          int n = blocks.length;
+          int mw = blocks[0].width / blocks[0].h;
+          int mh = blocks[0].height / blocks[0].v;
+          int[] pred = new int[n];
+          for(int my=0; my<mh; my++) {
+               for(int mx=0; mx<mw; mx++) {
+                    for(int i=0; i<n; i++) {
+                         Blocks b = blocks[i];
+                         for(int v=0; v<b.v; v++) {
+                              for(int h=0; h<b.h; h++) {
+                                   int off = b.offset(mx * b.h + h, my * b.v + v);
+                                   if(bw == null)
+                                        count(b.coef, off, pred[i], dcFreq[scanDc[i]], acFreq[scanAc[i]]);
+                                   else
+                                        encodeBlock(bw, b.coef, off, pred[i], dc[scanDc[i]], ac[scanAc[i]]);
+                                   pred[i] = b.coef[off];
+                              }
+                         }
+                    }
+               }
+          }
+     }
+
+     /** Count the symbols coding a block */
+     private static void count(short[] coef, int off, int pred, int[] dcFreq, int[] acFreq) {
+          dcFreq[bitLength(coef[off] - pred)]++;
+          int r = 0;
+          for(int k=1; k<64; k++) {
+               int v = coef[off + k];
+               if(v == 0) {
+                    r++;
+                    continue;
+               }
+               for(; r>15; r-=16)
+                    acFreq[0xf0]++;
+               acFreq[(r << 4) | bitLength(v)]++;
+               r = 0;
+          }
+          if(r > 0)
+               acFreq[0]++;
+     }
+
+     /** Write the codes of a block */
+     private static void encodeBlock(BitWriter bw, short[] coef, int off, int pred, HuffTable dc, HuffTable ac) throws IOException {
+          int d = coef[off] - pred;
+          int s = bitLength(d);
+          bw.write(dc.code[s], dc.size[s]);
+          if(s > 0)
+               bw.write(d < 0 ? d + (1 << s) - 1 : d, s);
+          int r = 0;
+          for(int k=1; k<64; k++) {
+               int v = coef[off + k];
+               if(v == 0) {
+                    r++;
+                    continue;
+               }
+               for(; r>15; r-=16)
+                    bw.write(ac.code[0xf0], ac.size[0xf0]);
+               s = bitLength(v);
+               int rs = (r << 4) | s;
+               bw.write(ac.code[rs], ac.size[rs]);
+               bw.write(v < 0 ? v + (1 << s) - 1 : v, s);
+               r = 0;
+          }
+          if(r > 0)
+               bw.write(ac.code[0], ac.size[0]);
+     }
+
+     private static boolean used(int[] freq) {
+          for(int f : freq)
+               if(f > 0)
+                    return true;
+          return false;
+     }
+
+     /** Number of bits in the magnitude of a coefficient */
+     private static int bitLength(int v) {
+          return 32 - Integer.numberOfLeadingZeros(Math.abs(v));
+     }
+
+     /** Value of {@code s} received bits, as a signed coefficient */
+     private static int extend(int v, int s) {
+          return v < (1 << (s - 1)) ? v - (1 << s) + 1 : v;
+     }
+
+     private static int ceil(int a, int b) {
+          return (a + b - 1) / b;
+     }
+
+     private boolean tag(int p, String s) {
+          for(int i=0; i<s.length(); i++)
+               if(u8(p + i) != s.charAt(i))
+                    return false;
+          return true;
+     }
+
+     private int u8(int p) {
+          return data[p] & 0xff;
+     }
+
+     private int u16(int p) {
+          return (u8(p) << 8) | u8(p + 1);
+     }
+
+     // -- Helper classes --
+
+     /** The kept blocks of one component, in a grid */
+     private static class Blocks {
+
+          final int width;
+          final int height;
+          /** Blocks per MCU, across and down */
+          final int h;
+          final int v;
+          final short[] coef;
+
+          Blocks(int width, int height, int h, int v) {
+               this.width = width;
+               this.height = height;
+               this.h = h;
+               this.v = v;
+               coef = new short[width * height * 64];
+          }
+
+          int offset(int bx, int by) {
+               return (by * width + bx) * 64;
+          }
+     }
+
+     /** A Huffman table, for decoding and encoding */
+     private static class HuffTable {
+
+          final int[] vals;
+          /** Largest code of each length, or -1 if none */
+          final int[] maxCode = new int[18];
+          final int[] minCode = new int[17];
+          final int[] valPtr = new int[17];
+          /** Code length and value of each {@link #LOOKAHEAD}-bit prefix; 0 if longer */
+          final int[] lookup = new int[1 << LOOKAHEAD];
+          /** Code and length of each value */
+          final int[] code = new int[256];
+          final int[] size = new int[256];
+
+          HuffTable(int[] bits, int[] vals) {
+               this.vals = vals;
+               int c = 0;
+               int k = 0;
+               for(int l=1; l<=16; l++) {
+                    valPtr[l] = k;
+                    minCode[l] = c;
+                    for(int i=0; i<bits[l]; i++, k++, c++) {
+                         code[vals[k]] = c;
+                         size[vals[k]] = l;
+                         if(l <= LOOKAHEAD)
+                              for(int j=c<<(LOOKAHEAD-l); j<(c+1)<<(LOOKAHEAD-l); j++)
+                                   lookup[j] = (l << 8) | vals[k];
+                    }
+                    maxCode[l] = bits[l] > 0 ? c - 1 : -1;
+                    c <<= 1;
+               }
+               maxCode[17] = Integer.MAX_VALUE;
+          }
+
+          /**
+           * Make the optimal table for a set of symbol counts, following
+           * section K.2 of the Jpeg standard, and write its DHT entry
+           */
+          static HuffTable optimal(int[] counts, int tc, int th, ByteArrayOutputStream dht) {
+               long[] freq = new long[257];
+               for(int i=0; i<256; i++)
+                    freq[i] = counts[i];
+               freq[256] = 1; // Reserved, so no code is all ones
+               int[] codeSize = new int[257];
+               int[] others = new int[257];
+               Arrays.fill(others, -1);
+               while(true) {
+                    int c1 = -1;
+                    long v = Long.MAX_VALUE;
+                    for(int i=0; i<=256; i++)
+                         if(freq[i] > 0 && freq[i] <= v) {
+                              v = freq[i];
+                              c1 = i;
+                         }
+                    int c2 = -1;
+                    v = Long.MAX_VALUE;
+                    for(int i=0; i<=256; i++)
+                         if(freq[i] > 0 && freq[i] <= v && i != c1) {
+                              v = freq[i];
+                              c2 = i;
+                         }
+                    if(c2 < 0)
+                         break;
+                    freq[c1] += freq[c2];
+                    freq[c2] = 0;
+                    codeSize[c1]++;
+                    while(others[c1] >= 0) {
+                         c1 = others[c1];
+                         codeSize[c1]++;
+                    }
+                    others[c1] = c2;
+                    codeSize[c2]++;
+                    while(others[c2] >= 0) {
+                         c2 = others[c2];
+                         codeSize[c2]++;
+                    }
+               }
+               int[] bits = new int[33];
+               for(int i=0; i<=256; i++)
+                    if(codeSize[i] > 0)
+                         bits[codeSize[i]]++;
+               for(int i=32; i>16; i--) {
+                    while(bits[i] > 0) {
+                         int j = i - 2;
+                         while(bits[j] == 0)
+                              j--;
+                         bits[i] -= 2;
+                         bits[i - 1]++;
+                         bits[j + 1] += 2;
+                         bits[j]--;
+                    }
+               }
+               int i = 16;
+               while(bits[i] == 0)
+                    i--;
+               bits[i]--; // The reserved symbol
+               int count = 0;
+               for(int l=1; l<=16; l++)
+                    count += bits[l];
+               int[] vals = new int[count];
+               int k = 0;
+               for(int l=1; l<=32; l++)
+                    for(int j=0; j<256; j++)
+                         if(codeSize[j] == l)
+                              vals[k++] = j;
+               dht.write((tc << 4) | th);
+               for(int l=1; l<=16; l++)
+                    dht.write(bits[l]);
+               for(int val : vals)
+                    dht.write(val);
+               return new HuffTable(Arrays.copyOf(bits, 17), vals);
+          }
+     }
+
+     /** Reads the entropy-coded data of a scan */
+     private static class BitReader {
+
+          private final byte[] data;
+          private int pos;
+          /** Buffered bits, left-aligned */
+          private long buf = 0;
+          private int bits = 0;
+          /** Has a marker been reached? Zero bits are read past it. */
+          private boolean marker = false;
+
+          BitReader(byte[] data, int pos) {
+               this.data = data;
+               this.pos = pos;
+          }
+
+          int decode(HuffTable t) throws IOException {
+               fill();
+               int e = t.lookup[(int)(buf >>> (64 - LOOKAHEAD))];
+               if(e != 0) {
+                    skip(e >> 8);
+                    return e & 0xff;
+               }
+               for(int l=LOOKAHEAD+1; l<=16; l++) {
+                    int c = (int)(buf >>> (64 - l));
+                    if(c <= t.maxCode[l]) {
+                         skip(l);
+                         return t.vals[t.valPtr[l] + c - t.minCode[l]];
+                    }
+               }
+               throw new IOException("Corrupt Jpeg data");
+          }
+
+          int receive(int s) {
+               fill();
+               int v = (int)(buf >>> (64 - s));
+               skip(s);
+               return v;
+          }
+
+          /** Skip to the data after the next restart marker */
+          void restart() throws IOException {
+               buf = 0;
+               bits = 0;
+               if(pos + 1 >= data.length || (data[pos] & 0xff) != 0xff
+                       || (data[pos + 1] & 0xf8) != RST0)
+                    throw new IOException("Missing Jpeg restart marker");
+               pos += 2;
+               marker = false;
+          }
+
+          private void skip(int n) {
+               buf <<= n;
+               bits -= n;
+          }
+
+          private void fill() {
+               while(bits <= 56) {
+                    int b = 0;
+                    if(!marker && pos < data.length) {
+                         b = data[pos] & 0xff;
+                         if(b != 0xff)
+                              pos++;
+                         else if(pos + 1 < data.length && data[pos + 1] == 0)
+                              pos += 2;
+                         else {
+                              marker = true;
+                              b = 0;
+                         }
+                    }
+                    buf |= (long)b << (56 - bits);
+                    bits += 8;
+               }
+          }
+     }
+
+     /** Writes entropy-coded data, with 0xff bytes stuffed */
+     private static class BitWriter {
+
+          private final OutputStream os;
+          private final byte[] out = new byte[1 << 16];
+          private int n = 0;
+          private long buf = 0;
+          private int bits = 0;
+
+          BitWriter(OutputStream os) {
+               this.os = os;
+          }
+
+          void write(int v, int size) throws IOException {
+               buf = (buf << size) | (v & ((1 << size) - 1));
+               bits += size;
+               while(bits >= 8) {
+                    bits -= 8;
+                    int b = (int)(buf >>> bits) & 0xff;
+                    out[n++] = (byte)b;
+                    if(b == 0xff)
+                         out[n++] = 0;
+                    if(n >= out.length - 1) {
+                         os.write(out, 0, n);
+                         n = 0;
+                    }
+               }
+          }
+
+          /** Pad the last byte with ones, and write the buffered bytes */
+          void flush() throws IOException {
+               if(bits > 0)
+                    write(0x7f, 8 - bits);
+               os.write(out, 0, n);
+               n = 0;
+          }
+     }
+
+}
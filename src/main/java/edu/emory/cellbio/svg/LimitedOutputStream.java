@@ -0,0 +1,79 @@
+package edu.emory.cellbio.svg;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that counts the bytes written through it and
+ * aborts once the count passes a limit.
+ *
+ * <p> The limit may be lowered from another thread while data is being
+ * written. Once the count exceeds the limit, the stream is marked as
+ * aborted and every subsequent write throws an {@link IOException},
+ * which stops whichever encoder is writing to the stream.
+ *
+ * @author Benjamin Nanes
+ */
+public class LimitedOutputStream extends FilterOutputStream {
+
+     // -- Fields --
+
+     private volatile long count = 0;
+     private volatile long limit = Long.MAX_VALUE;
+     private volatile boolean aborted = false;
+
+     // -- Constructors --
+
+     public LimitedOutputStream(OutputStream out) {
+          super(out);
+     }
+
+     // -- Methods --
+
+     /** Number of bytes written so far */
+     public long getCount() {
+          return count;
+     }
+
+     /**
+      * Set the maximum number of bytes that may be written.
+      * If more than {@code limit} bytes have already been written,
+      * the next write will fail.
+      */
+     public void setLimit(long limit) {
+          this.limit = limit;
+          if(count > limit)
+               aborted = true;
+     }
+
+     /** Returns {@code true} if writing was stopped because the limit was passed */
+     public boolean isAborted() {
+          return aborted;
+     }
+
+     // -- OutputStream overrides --
+
+     @Override
+     public void write(int b) throws IOException {
+          check(1);
+          out.write(b);
+     }
+
+     @Override
+     public void write(byte[] b, int off, int len) throws IOException {
+          check(len);
+          out.write(b, off, len);
+     }
+
+     // -- Helper methods --
+
+     private void check(int len) throws IOException {
+          count += len;
+          if(count > limit)
+               aborted = true;
+          if(aborted)
+               throw new IOException("Output limit of " + limit + " bytes exceeded");
+     }
+
+}
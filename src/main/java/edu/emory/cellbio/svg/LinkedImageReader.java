@@ -0,0 +1,240 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decode a region of a linked image file with ImageIO.
+ *
+ * <p> Only the image header is read when the file is opened, so the
+ * image dimensions are available before any pixels are decoded.
+ * {@link #read} then decodes just the requested region, so pixels
+ * that will be cropped away are never stored. The file is read through
+ * a {@link MappedImageInputStream}.
+ *
+ * <p> Only opaque images with 8-bit RGB or grayscale samples are handled
+ * here; {@link #open} returns {@code null} for anything else, and the
+ * image should be loaded with ImageJ instead. In particular, ImageJ
+ * scales 16-bit images to their display range, which can't be reproduced
+ * from part of the image.
+ *
+ * @author Benjamin Nanes
+ */
+public class LinkedImageReader implements Closeable {
+
+     // -- Fields --
+
+     private final ImageReader reader;
+     private final ImageInputStream iis;
+     private final String format;
+     /** The reader's {@code TYPE_INT_RGB} destination type, if it has one */
+     private final ImageTypeSpecifier rgbType;
+
+     // -- Constructors --
+
+     private LinkedImageReader(ImageReader reader, ImageInputStream iis) throws IOException {
+          this.reader = reader;
+          this.iis = iis;
+          this.format = reader.getFormatName().toLowerCase();
+          ImageTypeSpecifier rgb = null;
+          for(Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0); types.hasNext(); ) {
+               ImageTypeSpecifier t = types.next();
+               if(t.getBufferedImageType() == BufferedImage.TYPE_INT_RGB)
+                    rgb = t;
+          }
+          this.rgbType = rgb;
+     }
+
+     // -- Methods --
+
+     /**
+      * Open an image file
+      * @return A reader for the file, or {@code null} if the file can't be
+      *     decoded with ImageIO or is not a supported image type
+      */
+     public static LinkedImageReader open(File f) throws IOException {
+          ImageInputStream iis = MappedImageInputStream.open(f);
+          if(iis == null)
+               return null;
+          Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+          while(readers.hasNext()) {
+               ImageReader r = readers.next();
+               try {
+                    r.setInput(iis, true, true);
+                    if(isSupported(r))
+                         return new LinkedImageReader(r, iis);
+               } catch(IOException e) {
+                    // Try the next reader
+               } catch(RuntimeException e) {
+                    // Try the next reader
+               }
+               r.dispose();
+               iis.seek(0);
+          }
+          iis.close();
+          return null;
+     }
+
+     /** Image width, in pixels */
+     public int getWidth() throws IOException {
+          return reader.getWidth(0);
+     }
+
+     /** Image height, in pixels */
+     public int getHeight() throws IOException {
+          return reader.getHeight(0);
+     }
+
+     /** Name of the image format, e.g. {@code png} or {@code jpeg} */
+     public String getFormat() {
+          return format;
+     }
+
+     /**
+      * Decode a region of the image
+      * @param region The region to decode, in pixels
+      */
+     public BufferedImage read(Rectangle region) throws IOException {
+          return read(region, 1, 1);
+     }
+
+     /**
+      * Decode a region of the image, keeping only every n-th pixel
+      * <p> Images are decoded straight to {@code TYPE_INT_RGB} if the
+      * reader can, e.g. RGB PNG images; otherwise they are decoded to
+      * the reader's own type, to be converted with {@link RgbConverter},
+      * e.g. 8-bit gray images, which are kept gray.
+      * <p> The decoded image is
+      * {@code ceil(region.width / xStep) x ceil(region.height / yStep)}
+      * pixels, sampled starting at the region's top-left corner.
+      * @param region The region to decode, in pixels
+      * @param xStep Horizontal subsampling step; 1 to keep every column
+      * @param yStep Vertical subsampling step; 1 to keep every row
+      */
+     public BufferedImage read(Rectangle region, int xStep, int yStep) throws IOException {
+          ImageReadParam p = reader.getDefaultReadParam();
+          p.setSourceRegion(region);
+          if(xStep > 1 || yStep > 1)
+               p.setSourceSubsampling(xStep, yStep, 0, 0);
+          if(rgbType != null)
+               p.setDestinationType(rgbType);
+          return reader.read(0, p);
+     }
+
+     /**
+      * Can the image be read in bands of rows without decoding it all?
+      * True for tiled images, and for images stored in strips, such as
+      * most TIFF files.
+      */
+     public boolean canReadBands() throws IOException {
+          return reader.getTileHeight(0) < reader.getHeight(0);
+     }
+
+     /**
+      * Read a region of the image in bands of rows, one tile or strip
+      * high, as a stage of a {@link StripImage}. The rows are the same as
+      * those of {@link #read(Rectangle, int, int)}. The stage does not close
+      * this reader.
+      */
+     public StripImage.Rows readBands(Rectangle region, int xStep, int yStep) throws IOException {
+          int band = Math.max((reader.getTileHeight(0) + yStep - 1) / yStep, 1);
+          return new BandRows(region, xStep, yStep, band);
+     }
+
+     @Override
+     public void close() throws IOException {
+          reader.dispose();
+          iis.close();
+     }
+
+     // -- Helper methods --
+
+     /** Is the image opaque, with 8-bit RGB or grayscale samples? */
+     private static boolean isSupported(ImageReader r) throws IOException {
+          ImageTypeSpecifier t = getType(r);
+          if(t == null)
+               return false;
+          ColorModel cm = t.getColorModel();
+          if(cm == null || cm.hasAlpha())
+               return false;
+          int cs = cm.getColorSpace().getType();
+          if(cs != ColorSpace.TYPE_RGB && cs != ColorSpace.TYPE_GRAY)
+               return false;
+          for(int bits : t.getSampleModel().getSampleSize())
+               if(bits > 8)
+                    return false;
+          return true;
+     }
+
+     /** The image's raw type, or its first type; {@code null} if it has none */
+     private static ImageTypeSpecifier getType(ImageReader r) throws IOException {
+          ImageTypeSpecifier t = r.getRawImageType(0);
+          if(t == null) {
+               Iterator<ImageTypeSpecifier> types = r.getImageTypes(0);
+               if(types.hasNext())
+                    t = types.next();
+          }
+          return t;
+     }
+
+     // -- Helper classes --
+
+     /** Rows of a region, read a band at a time */
+     private class BandRows extends StripImage.Rows {
+
+          private final Rectangle region;
+          private final int xStep;
+          private final int yStep;
+          private final int band;
+          private final boolean gray;
+          private BufferedImage current = null;
+          private int bandStart = 0;
+          private int nextRow = 0;
+
+          BandRows(Rectangle region, int xStep, int yStep, int band) throws IOException {
+               super((region.width + xStep - 1) / xStep, (region.height + yStep - 1) / yStep);
+               this.region = region;
+               this.xStep = xStep;
+               this.yStep = yStep;
+               this.band = band;
+               ImageTypeSpecifier t = getType(reader);
+               gray = t != null && t.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY;
+          }
+
+          @Override
+          public boolean isGray() {
+               return gray;
+          }
+
+          @Override
+          public void read(int[] row) throws IOException {
+               if(current == null || nextRow >= bandStart + current.getHeight()) {
+                    bandStart = nextRow;
+                    int rows = Math.min(band, getHeight() - nextRow);
+                    Rectangle r = new Rectangle(region.x, region.y + nextRow * yStep,
+                            region.width, (rows - 1) * yStep + 1);
+                    current = RgbConverter.toRGBOrGray(LinkedImageReader.this.read(r, xStep, yStep));
+               }
+               if(current.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+                    current.getRaster().getSamples(0, nextRow - bandStart, getWidth(), 1, 0, row);
+                    for(int x=0; x<getWidth(); x++)
+                         row[x] *= 0x010101;
+               } else {
+                    current.getRaster().getDataElements(0, nextRow - bandStart, getWidth(), 1, row);
+               }
+               nextRow++;
+          }
+     }
+
+}
@@ -0,0 +1,188 @@
+package edu.emory.cellbio.svg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * An {@code ImageInputStream} over a memory-mapped file.
+ *
+ * <p> Decoders read straight from the mapped pages, rather than through
+ * a file handle and intermediate buffers, and the pages are shared with
+ * the OS page cache, so parallel runs reading the same file don't each
+ * keep their own copy. Files are mapped in chunks, when first read, so
+ * files larger than 2GB can be read and only the parts that are
+ * actually decoded take up address space.
+ *
+ * <p> Mapped pages are released when the stream is garbage collected,
+ * not when it is closed, and on Windows the file can't be modified or
+ * deleted until then. So mapping is off on Windows, and long-running
+ * processes such as {@link EmbedAndCropServer} turn it off with
+ * {@link #setMapping}; files are then read with plain file streams.
+ *
+ * @author Benjamin Nanes
+ */
+public class MappedImageInputStream extends ImageInputStreamImpl {
+
+     // -- Fields --
+
+     /** Size of each mapped chunk (bytes) */
+     static final int CHUNK = 1 << 28;
+
+     /** Buffer size for reading chunks when mapping is off (bytes) */
+     private static final int READ_BUFFER = 1 << 20;
+
+     /** Whether files are mapped; off by default on Windows */
+     private static volatile boolean mapping =
+             System.getProperty("os.name", "generic").toLowerCase(Locale.ENGLISH).indexOf("win") < 0;
+
+     private final FileChannel channel;
+     private final long length;
+     private final MappedByteBuffer[] chunks;
+
+     // -- Constructors --
+
+     /** @param f The file to read */
+     public MappedImageInputStream(File f) throws IOException {
+          RandomAccessFile raf = new RandomAccessFile(f, "r");
+          channel = raf.getChannel();
+          try {
+               length = channel.size();
+               chunks = new MappedByteBuffer[(int)((length + CHUNK - 1) / CHUNK)];
+               if(length > 0)
+                    chunk(0); // Fail now, rather than while decoding, if the file can't be mapped
+          } catch(IOException e) {
+               raf.close();
+               throw e;
+          }
+     }
+
+     // -- Methods --
+
+     /**
+      * Turn memory mapping of files on or off
+      * @param on {@code false} to read files with plain file streams
+      */
+     public static void setMapping(boolean on) {
+          mapping = on;
+     }
+
+     /**
+      * Open a file as an image stream, mapped if possible
+      * @return A mapped stream, or a regular file stream if the file
+      *     can't be mapped or mapping is off; {@code null} if the file
+      *     can't be read
+      */
+     public static ImageInputStream open(File f) throws IOException {
+          if(!mapping)
+               return new FileImageInputStream(f);
+          try {
+               return new MappedImageInputStream(f);
+          } catch(IOException e) {
+               return ImageIO.createImageInputStream(f);
+          }
+     }
+
+     /**
+      * Pass the whole file through a consumer, one mapped chunk at a time,
+      * without copying it to the heap. If mapping is off, the file is
+      * read into a smaller buffer instead, one buffer at a time.
+      */
+     public static void forEachChunk(File f, ChunkConsumer c) throws IOException {
+          RandomAccessFile raf = new RandomAccessFile(f, "r");
+          try {
+               FileChannel ch = raf.getChannel();
+               long size = ch.size();
+               if(mapping) {
+                    for(long pos=0; pos<size; pos+=CHUNK)
+                         c.accept(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(CHUNK, size - pos)));
+                    return;
+               }
+               ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER);
+               while(ch.read(buf) >= 0) {
+                    ((Buffer)buf).flip();
+                    c.accept(buf);
+                    ((Buffer)buf).clear();
+               }
+          } finally {
+               raf.close();
+          }
+     }
+
+     @Override
+     public int read() throws IOException {
+          checkClosed();
+          bitOffset = 0;
+          if(streamPos >= length)
+               return -1;
+          ByteBuffer b = chunk(streamPos);
+          int v = b.get((int)(streamPos % CHUNK)) & 0xff;
+          streamPos++;
+          return v;
+     }
+
+     @Override
+     public int read(byte[] b, int off, int len) throws IOException {
+          checkClosed();
+          if(off < 0 || len < 0 || off + len > b.length)
+               throw new IndexOutOfBoundsException();
+          bitOffset = 0;
+          if(len == 0)
+               return 0;
+          if(streamPos >= length)
+               return -1;
+          int n = 0;
+          while(n < len && streamPos < length) {
+               ByteBuffer c = chunk(streamPos);
+               int p = (int)(streamPos % CHUNK);
+               int k = Math.min(len - n, c.limit() - p);
+               ((Buffer)c).position(p); // Buffer's signature, for Java 8
+               c.get(b, off + n, k);
+               n += k;
+               streamPos += k;
+          }
+          return n;
+     }
+
+     @Override
+     public long length() {
+          return length;
+     }
+
+     @Override
+     public void close() throws IOException {
+          super.close();
+          Arrays.fill(chunks, null); // Let the mappings go as soon as they are collected
+          channel.close();
+     }
+
+     // -- Helper methods --
+
+     /** The chunk holding a position, mapping it if needed */
+     private ByteBuffer chunk(long pos) throws IOException {
+          int i = (int)(pos / CHUNK);
+          if(chunks[i] == null) {
+               long start = (long)i * CHUNK;
+               chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK, length - start));
+          }
+          return chunks[i];
+     }
+
+     // -- Helper classes --
+
+     /** Receives the chunks of a mapped file, in order */
+     public interface ChunkConsumer {
+          void accept(ByteBuffer chunk) throws IOException;
+     }
+
+}
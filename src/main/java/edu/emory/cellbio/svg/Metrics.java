@@ -0,0 +1,425 @@
+package edu.emory.cellbio.svg;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Wall time and allocated memory for each processing stage, per image
+ * and per document, appended to a report file.
+ *
+ * <p> Stages are timed with {@link #mark()} and {@link #add}, which
+ * record to the current thread's {@link Record}: the document while its
+ * structure is examined, or the image while its job runs. When no report
+ * was requested there is no current record, and both are no-ops.
+ * Allocated bytes are those of the thread running the stage, and are
+ * not available on every JVM. Helper threads that resample strips of an
+ * image are not counted, although their wall time is.
+ *
+ * <p> A report file ending in {@code .csv} gets one row per document and
+ * one per image, with a column pair for each stage. Otherwise each
+ * document is written as one line of JSON, with its images nested. Either
+ * way, reports are appended, so many runs can share one file. Document
+ * stages include the sum of its images' stages, which can be longer than
+ * the document's total time when images are processed in parallel. In
+ * low-memory mode parsing and serializing are interleaved with image
+ * processing, and only the document's total time is recorded for them.
+ *
+ * @author Benjamin Nanes
+ */
+class Metrics {
+
+     // -- Fields --
+
+     static final String PARSE = "parse";
+     static final String CLIP = "clip";
+     static final String DECODE = "decode";
+     static final String CROP = "crop";
+     static final String RESAMPLE = "resample";
+     static final String ENCODE_PNG = "encode-png";
+     static final String ENCODE_JPEG = "encode-jpeg";
+     static final String BASE64 = "base64";
+     static final String SERIALIZE = "serialize";
+     /** All stages, in report order */
+     static final String[] STAGES = {PARSE, CLIP, DECODE, CROP, RESAMPLE, ENCODE_PNG, ENCODE_JPEG, BASE64, SERIALIZE};
+
+     private static final ThreadLocal<Record> CURRENT = new ThreadLocal<Record>();
+     private static final com.sun.management.ThreadMXBean THREADS = getThreadBean();
+
+     private final File report;
+     private final boolean csv;
+
+     // -- Constructors --
+
+     /** @param report File to append reports to; CSV if it ends in {@code .csv}, otherwise JSON lines */
+     Metrics(File report) {
+          this.report = report;
+          csv = report.getName().toLowerCase(Locale.ENGLISH).endsWith(".csv");
+     }
+
+     // -- Methods --
+
+     /**
+      * Start recording a document
+      * @param name The input file, or a description of the input
+      * @param inputBytes Size of the input, or -1 if not known
+      */
+     Record begin(String name, long inputBytes) {
+          Record doc = new Record(name, null, new ArrayList<Record>());
+          doc.inputBytes = inputBytes;
+          doc.start();
+          return doc;
+     }
+
+     /**
+      * Finish recording a document and append it to the report.
+      * Problems writing the report are reported, but are not fatal.
+      * @param output The output file, or {@code null} if not written to a file
+      * @param error Why processing failed, or {@code null} if it succeeded
+      */
+     void end(Record doc, File output, Throwable error) {
+          doc.finish();
+          if(output != null && output.isFile())
+               doc.outputBytes = output.length();
+          doc.result = error == null ? "ok" : "failed";
+          String when = timestamp();
+          StringBuilder sb = new StringBuilder();
+          if(csv) {
+               synchronized(this) {
+                    if(report.length() == 0)
+                         csvHeader(sb);
+                    csvRow(sb, when, doc, doc);
+                    for(Record img : doc.images)
+                         csvRow(sb, when, doc, img);
+                    append(sb);
+               }
+          } else {
+               sb.append("{\"time\":").append(json(when))
+                 .append(",\"document\":").append(json(doc.name))
+                 .append(",\"output\":").append(json(output == null ? null : output.getPath()));
+               if(error != null)
+                    sb.append(",\"error\":").append(json(String.valueOf(error.getMessage())));
+               jsonRecord(sb, doc);
+               sb.append(",\"images\":[");
+               for(int i=0; i<doc.images.size(); i++) {
+                    sb.append(i == 0 ? "{" : ",{").append("\"id\":").append(json(doc.images.get(i).name))
+                      .append(",\"source\":").append(json(doc.images.get(i).source));
+                    jsonRecord(sb, doc.images.get(i));
+                    sb.append("}");
+               }
+               sb.append("]}\n");
+               synchronized(this) {
+                    append(sb);
+               }
+          }
+     }
+
+     /**
+      * Make a record current on this thread
+      * @param r The record, or {@code null} to stop recording
+      * @return The previously current record, for {@link #exit}
+      */
+     static Record enter(Record r) {
+          Record prev = CURRENT.get();
+          CURRENT.set(r);
+          return prev;
+     }
+
+     /** Restore the record that was current before {@link #enter} */
+     static void exit(Record prev) {
+          if(prev == null)
+               CURRENT.remove();
+          else
+               CURRENT.set(prev);
+     }
+
+     /** The current thread's record, or {@code null} if not recording */
+     static Record current() {
+          return CURRENT.get();
+     }
+
+     /**
+      * Add an image to the current document
+      * @param id The image element's ID
+      * @param source The linked file, or {@code null} for an embedded image
+      * @return The image's record, or {@code null} if not recording
+      */
+     static Record image(String id, String source) {
+          Record doc = CURRENT.get();
+          if(doc == null || doc.images == null)
+               return null;
+          Record img = new Record(id, source == null ? "embedded" : source, null);
+          synchronized(doc) {
+               doc.images.add(img);
+          }
+          return img;
+     }
+
+     /** Mark the start of a stage, or {@code null} if not recording */
+     static long[] mark() {
+          if(CURRENT.get() == null)
+               return null;
+          return new long[] {System.nanoTime(), allocated()};
+     }
+
+     /** Record a stage from its start mark to now */
+     static void add(String stage, long[] mark) {
+          Record r = CURRENT.get();
+          if(r != null && mark != null)
+               r.add(stage, mark);
+     }
+
+     /** Record the size of the current image's source data (bytes) */
+     static void input(long bytes) {
+          Record r = CURRENT.get();
+          if(r != null)
+               r.inputBytes = bytes;
+     }
+
+     /**
+      * Record the encoded data of the current image
+      * @param href The data URI
+      */
+     static void output(String href) {
+          Record r = CURRENT.get();
+          if(r == null)
+               return;
+          int semi = href.indexOf(';');
+          r.format = href.startsWith("data:image/") && semi > 0 ? href.substring(11, semi) : null;
+          r.outputBytes = href.length();
+     }
+
+     /** Record what happened to the current image: {@code encoded}, {@code cached}, {@code reused}, or {@code skipped} */
+     static void result(String result) {
+          Record r = CURRENT.get();
+          if(r != null)
+               r.result = result;
+     }
+
+     // -- Helper methods --
+
+     private static com.sun.management.ThreadMXBean getThreadBean() {
+          try {
+               java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+               if(!(b instanceof com.sun.management.ThreadMXBean))
+                    return null;
+               com.sun.management.ThreadMXBean sb = (com.sun.management.ThreadMXBean)b;
+               if(!sb.isThreadAllocatedMemorySupported())
+                    return null;
+               sb.setThreadAllocatedMemoryEnabled(true);
+               return sb;
+          } catch(Throwable t) {
+               return null;
+          }
+     }
+
+     /** Bytes allocated by the current thread so far, or -1 if not available */
+     private static long allocated() {
+          return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+     }
+
+     private static String timestamp() {
+          SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+          f.setTimeZone(TimeZone.getTimeZone("UTC"));
+          return f.format(new Date());
+     }
+
+     private void append(StringBuilder sb) {
+          OutputStream os = null;
+          try {
+               os = new FileOutputStream(report, true);
+               os.write(sb.toString().getBytes("UTF-8")); // One write, so concurrent runs don't interleave lines
+          } catch(IOException e) {
+               System.err.println("Can't write metrics report: " + e.getMessage());
+          } finally {
+               if(os != null) {
+                    try { os.close(); }
+                    catch(IOException e) { }
+               }
+          }
+     }
+
+     private static void csvHeader(StringBuilder sb) {
+          sb.append("time,document,image,source,result,format,input_bytes,output_bytes,total_ms,total_alloc_bytes");
+          for(String s : STAGES)
+               sb.append(',').append(s).append("_ms,").append(s).append("_alloc_bytes");
+          sb.append('\n');
+     }
+
+     private static void csvRow(StringBuilder sb, String when, Record doc, Record r) {
+          sb.append(when).append(',').append(csv(doc.name)).append(',')
+            .append(r == doc ? "" : csv(r.name)).append(',')
+            .append(r == doc ? "" : csv(r.source)).append(',')
+            .append(csv(r.result)).append(',').append(csv(r.format)).append(',')
+            .append(size(r.inputBytes, "")).append(',').append(size(r.outputBytes, "")).append(',');
+          csvTime(sb, r.total);
+          Map<String, long[]> stages = r.totals();
+          for(String s : STAGES) {
+               sb.append(',');
+               csvTime(sb, stages.get(s));
+          }
+          sb.append('\n');
+     }
+
+     private static void csvTime(StringBuilder sb, long[] t) {
+          if(t == null)
+               sb.append(',');
+          else
+               sb.append(millis(t[1])).append(',').append(size(t[2], ""));
+     }
+
+     private static void jsonRecord(StringBuilder sb, Record r) {
+          sb.append(",\"result\":").append(json(r.result))
+            .append(",\"format\":").append(json(r.format))
+            .append(",\"input_bytes\":").append(size(r.inputBytes, "null"))
+            .append(",\"output_bytes\":").append(size(r.outputBytes, "null"))
+            .append(",\"total\":");
+          jsonTime(sb, r.total);
+          sb.append(",\"stages\":{");
+          Map<String, long[]> stages = r.totals();
+          boolean first = true;
+          for(String s : STAGES) {
+               long[] t = stages.get(s);
+               if(t == null)
+                    continue;
+               sb.append(first ? "" : ",").append(json(s)).append(':');
+               jsonTime(sb, t);
+               first = false;
+          }
+          sb.append('}');
+     }
+
+     private static void jsonTime(StringBuilder sb, long[] t) {
+          if(t == null)
+               sb.append("null");
+          else
+               sb.append("{\"count\":").append(t[0]).append(",\"ms\":").append(millis(t[1]))
+                 .append(",\"alloc_bytes\":").append(size(t[2], "null")).append('}');
+     }
+
+     private static String millis(long nanos) {
+          return String.format(Locale.ENGLISH, "%1$.3f", nanos / 1e6);
+     }
+
+     private static String size(long bytes, String missing) {
+          return bytes < 0 ? missing : Long.toString(bytes);
+     }
+
+     private static String csv(String s) {
+          if(s == null)
+               return "";
+          if(s.contains(",") || s.contains("\"") || s.contains("\n"))
+               return "\"" + s.replace("\"", "\"\"") + "\"";
+          return s;
+     }
+
+     private static String json(String s) {
+          if(s == null)
+               return "null";
+          StringBuilder sb = new StringBuilder("\"");
+          for(int i=0; i<s.length(); i++) {
+               char c = s.charAt(i);
+               if(c == '"' || c == '\\')
+                    sb.append('\\').append(c);
+               else if(c < 0x20)
+                    sb.append(String.format("\\u%04x", (int)c));
+               else
+                    sb.append(c);
+          }
+          return sb.append('"').toString();
+     }
+
+     // -- Helper classes --
+
+     /** Stage times and sizes for one document or image */
+     static class Record {
+
+          final String name;
+          final String source;
+          /** Images of a document; {@code null} for an image */
+          private final List<Record> images;
+          /** Stage to {count, wall time (ns), allocated bytes} */
+          private final Map<String, long[]> stages = new HashMap<String, long[]>();
+          private long[] start;
+          private long[] total;
+          private volatile String result;
+          private volatile String format;
+          private volatile long inputBytes = -1;
+          private volatile long outputBytes = -1;
+
+          private Record(String name, String source, List<Record> images) {
+               this.name = name;
+               this.source = source;
+               this.images = images;
+               result = images == null ? "encoded" : null;
+          }
+
+          /** Start the total time, on the thread that will do the work */
+          void start() {
+               start = new long[] {System.nanoTime(), allocated()};
+          }
+
+          /** Stop the total time */
+          synchronized void finish() {
+               if(start != null)
+                    total = delta(new long[] {0, 0, 0}, start);
+          }
+
+          /** Record a stage from its start mark to now */
+          synchronized void add(String stage, long[] mark) {
+               long[] t = stages.get(stage);
+               if(t == null) {
+                    t = new long[] {0, 0, 0};
+                    stages.put(stage, t);
+               }
+               delta(t, mark);
+          }
+
+          /** Stages of this record and, for a document, the sum over its images */
+          private synchronized Map<String, long[]> totals() {
+               Map<String, long[]> sum = new HashMap<String, long[]>();
+               List<Record> all = new ArrayList<Record>();
+               all.add(this);
+               if(images != null)
+                    all.addAll(images);
+               for(Record r : all) {
+                    Map<String, long[]> rs;
+                    synchronized(r) {
+                         rs = new HashMap<String, long[]>(r.stages);
+                    }
+                    for(Map.Entry<String, long[]> e : rs.entrySet()) {
+                         long[] t = sum.get(e.getKey());
+                         if(t == null) {
+                              t = new long[] {0, 0, 0};
+                              sum.put(e.getKey(), t);
+                         }
+                         t[0] += e.getValue()[0];
+                         t[1] += e.getValue()[1];
+                         t[2] = t[2] < 0 || e.getValue()[2] < 0 ? -1 : t[2] + e.getValue()[2];
+                    }
+               }
+               return sum;
+          }
+
+          /** Add the time and allocation since {@code mark} to {@code t} */
+          private static long[] delta(long[] t, long[] mark) {
+               long now = System.nanoTime();
+               long alloc = allocated();
+               t[0]++;
+               t[1] += now - mark[0];
+               t[2] = t[2] < 0 || alloc < 0 || mark[1] < 0 ? -1 : t[2] + alloc - mark[1];
+               return t;
+          }
+     }
+
+}
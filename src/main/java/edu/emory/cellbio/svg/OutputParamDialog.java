@@ -28,11 +28,17 @@ public class OutputParamDialog extends JDialog implements ActionListener {
      private JComboBox imgFileMode;
      private JLabel compQualLabel;
      private JSpinner compQual;
+     private JLabel pngLevelLabel;
+     private JComboBox pngLevel;
+     private JLabel pngFilterLabel;
+     private JComboBox pngFilter;
      private JLabel resampLabel;
      private JLabel resampLabel2;
      private JCheckBox resampCheck;
      private JSpinner resampLevel;
      private JSpinner resampLevel2;
+     private JLabel resampKernelLabel;
+     private JComboBox resampKernel;
      private JCheckBox procEmbedCheck;
      private JLabel procEmbedLabel;
      private JSpinner procEmbedLevel;
@@ -41,6 +47,9 @@ public class OutputParamDialog extends JDialog implements ActionListener {
      
      private boolean wasOKd = false;
      
+     /** Deflate levels for the PNG compression choices; -1 uses the Java writer */
+     private static final int[] PNG_LEVELS = {-1, 1, 3, 6, 9};
+     
      // -- Constructors --
      
      public OutputParamDialog() {
@@ -55,6 +64,10 @@ public class OutputParamDialog extends JDialog implements ActionListener {
                compQual.setEnabled(imgFileMode.getSelectedIndex() > 0);
                compQualLabel.setEnabled(imgFileMode.getSelectedIndex() > 0);
           }
+          if(e.getSource() == pngLevel) {
+               pngFilter.setEnabled(pngLevel.getSelectedIndex() > 0);
+               pngFilterLabel.setEnabled(pngLevel.getSelectedIndex() > 0);
+          }
           if(e.getSource() == ok) {
                System.err.println("ok");
                wasOKd = true;
@@ -98,6 +111,8 @@ public class OutputParamDialog extends JDialog implements ActionListener {
                     return "jpeg";
                case 2:
                     return "mix";
+               case 3:
+                    return "mix-fast";
           }
           throw new IllegalArgumentException("Invalid image type selecetd");
      }
@@ -107,6 +122,16 @@ public class OutputParamDialog extends JDialog implements ActionListener {
           return ((Double)compQual.getModel().getValue()).floatValue();
      }
      
+     /** Get the selected PNG deflate level, or -1 for the Java writer */
+     public int getPngLevel() {
+          return PNG_LEVELS[pngLevel.getSelectedIndex()];
+     }
+     
+     /** Get the selected PNG row filter, one of {@link PngEncoder#FILTERS} */
+     public String getPngFilter() {
+          return PngEncoder.FILTERS[pngFilter.getSelectedIndex()];
+     }
+     
      /** Get the selected resampling option */
      public boolean getDoResample() {
          return resampCheck.getModel().isSelected();
@@ -120,6 +145,11 @@ public class OutputParamDialog extends JDialog implements ActionListener {
          return ((Double)resampLevel2.getModel().getValue()).floatValue();
      }
      
+     /** Get the selected resampling filter, one of {@link Resampler#KERNELS} */
+     public String getResampleKernel() {
+         return Resampler.KERNELS[resampKernel.getSelectedIndex()];
+     }
+     
      /** Get the selected embedded image processing threshold */
      public long getEmbeddedImageSizeMin() {
          if(!procEmbedCheck.getModel().isSelected())
@@ -143,7 +173,7 @@ public class OutputParamDialog extends JDialog implements ActionListener {
           
           setLayout(new BoxLayout(getContentPane(), BoxLayout.Y_AXIS));
           imgFileLabel = new JLabel("Image encoding type:");
-          imgFileMode = new JComboBox(new String[] {"PNG", "JPEG", "Most efficient"});
+          imgFileMode = new JComboBox(new String[] {"PNG", "JPEG", "Most efficient", "Most efficient (fast estimate)"});
           imgFileMode.setAlignmentX(Component.LEFT_ALIGNMENT);
           imgFileMode.addActionListener(this);
           compQualLabel = new JLabel("Compression level\n(high, better quality; low, smaller file):");
@@ -151,6 +181,16 @@ public class OutputParamDialog extends JDialog implements ActionListener {
           compQual = new JSpinner(new SpinnerNumberModel(0.8f, 0.0f, 1.0f, 0.1f));
           compQual.setAlignmentX(Component.LEFT_ALIGNMENT);
           compQual.setEnabled(imgFileMode.getSelectedIndex() > 0);
+          pngLevelLabel = new JLabel("PNG compression:");
+          pngLevel = new JComboBox(new String[] {"Standard (Java)", "Fastest", "Fast", "Balanced", "Smallest"});
+          pngLevel.setAlignmentX(Component.LEFT_ALIGNMENT);
+          pngLevel.addActionListener(this);
+          pngFilterLabel = new JLabel("PNG row filter:");
+          pngFilterLabel.setEnabled(false);
+          pngFilter = new JComboBox(new String[] {"None", "Sub", "Up", "Average", "Paeth", "Adaptive"});
+          pngFilter.setSelectedIndex(PngEncoder.FILTERS.length - 1);
+          pngFilter.setAlignmentX(Component.LEFT_ALIGNMENT);
+          pngFilter.setEnabled(false);
           resampLabel = new JLabel("Downsample to (px/mm):");
           resampLabel2 = new JLabel("For images greater than (px/mm):");
           resampCheck = new JCheckBox("Do resampling?");
@@ -158,6 +198,9 @@ public class OutputParamDialog extends JDialog implements ActionListener {
           resampLevel.setAlignmentX(Component.LEFT_ALIGNMENT);
           resampLevel2 = new JSpinner(new SpinnerNumberModel(15.748f, 0.0f, 1000.0f, 0.1f));
           resampLevel2.setAlignmentX(Component.LEFT_ALIGNMENT);
+          resampKernelLabel = new JLabel("Resampling filter:");
+          resampKernel = new JComboBox(new String[] {"Bicubic", "Area average", "Progressive bicubic", "Lanczos"});
+          resampKernel.setAlignmentX(Component.LEFT_ALIGNMENT);
           procEmbedCheck = new JCheckBox("Process embedded images?");
           procEmbedCheck.addActionListener(this);
           procEmbedLabel = new JLabel("For images greater than (kB):");
@@ -186,11 +229,18 @@ public class OutputParamDialog extends JDialog implements ActionListener {
           add(compQualLabel);
           add(compQual);
           add(Box.createVerticalStrut(10));
+          add(pngLevelLabel);
+          add(pngLevel);
+          add(pngFilterLabel);
+          add(pngFilter);
+          add(Box.createVerticalStrut(10));
           add(resampCheck);
           add(resampLabel);
           add(resampLevel);
           add(resampLabel2);
           add(resampLevel2);
+          add(resampKernelLabel);
+          add(resampKernel);
           add(Box.createVerticalStrut(10));
           add(procEmbedCheck);
           add(procEmbedLabel);
@@ -0,0 +1,671 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder with a selectable deflate level and row filter.
+ *
+ * <p> Available filters:
+ * <ul>
+ * <li> {@code none}, {@code sub}, {@code up}, {@code average},
+ *      {@code paeth} &mdash; the same PNG filter for every row.
+ * <li> {@code adaptive} &mdash; each row is filtered with whichever
+ *      filter gives the smallest sum of absolute differences, as
+ *      recommended by the PNG specification. This is what the JDK
+ *      writer does.
+ * </ul>
+ * The image is split into blocks of rows, each deflated separately and
+ * ended with a sync flush, so blocks can be compressed in parallel, as
+ * in pigz. Each block is primed with the last 32kB of the previous block,
+ * so very little compression is lost. The split doesn't depend on the
+ * number of threads, so the output is the same for serial and parallel
+ * runs.
+ *
+ * <p> Before encoding, the pixels are checked for the smallest format
+ * that holds them exactly: 1-bit grayscale for black and white images,
+ * 8-bit grayscale, indexed color with a palette of up to 256 colors (at
+ * 1, 2, 4 or 8 bits per pixel), or otherwise 8-bit RGB. Images with any
+ * transparent pixels are written as 8-bit RGBA. With the {@code adaptive}
+ * filter, indexed and 1-bit images are left unfiltered, as recommended
+ * by the PNG specification.
+ *
+ * @author Benjamin Nanes
+ */
+public class PngEncoder {
+
+     // -- Fields --
+
+     /** Names of the available row filters, for command line and dialog options */
+     public static final String[] FILTERS = {"none", "sub", "up", "average", "paeth", "adaptive"};
+
+     /** Uncompressed bytes per deflate block */
+     private static final int BLOCK = 1 << 20;
+     /** Deflate window size */
+     private static final int WINDOW = 1 << 15;
+     private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+     private static final int ADAPTIVE = 5;
+
+     private final int level;
+     private final int filter;
+     private final int parallel;
+     private final ExecutorService pool;
+
+     // -- Constructors --
+
+     /**
+      * @param level Deflate level, 0 (no compression) to 9 (smallest)
+      * @param filter One of {@link #FILTERS}
+      * @param parallel Maximum number of blocks compressed at once
+      * @param pool Compresses all but the first block; may be
+      *     {@code null} if {@code parallel} is 1
+      */
+     public PngEncoder(int level, String filter, int parallel, ExecutorService pool) {
+          if(level < 0 || level > 9)
+               throw new IllegalArgumentException("Invalid PNG compression level: " + level);
+          if(!isFilter(filter))
+               throw new IllegalArgumentException("Unknown PNG filter: " + filter);
+          this.level = level;
+          this.filter = indexOf(filter);
+          this.parallel = pool == null ? 1 : Math.max(parallel, 1);
+          this.pool = pool;
+     }
+
+     // -- Methods --
+
+     /** Is {@code name} one of the available {@link #FILTERS}? */
+     public static boolean isFilter(String name) {
+          return indexOf(name) >= 0;
+     }
+
+     /**
+      * Encode an image
+      * <p> A {@link BufferedImage} is checked for the smallest format that
+      * holds its pixels, and blocks read their rows from it in parallel.
+      * Any other image is read from top to bottom, a tile at a time, on
+      * the calling thread, and is written as RGB, or as grayscale if it
+      * is a gray {@link StripImage}. Its tiles must have packed
+      * {@code int} RGB pixels, or 8-bit gray samples.
+      * @param os Receives the PNG file; not closed. If writing fails,
+      *     blocks still being compressed are canceled.
+      */
+     public void write(RenderedImage img, OutputStream os) throws IOException {
+          final BufferedImage bi = img instanceof BufferedImage ? (BufferedImage)img : null;
+          final Format fmt = bi != null ? Format.of(bi) : Format.of(img);
+          final TileRows tiles = bi != null ? null : new TileRows(img);
+          final int w = img.getWidth();
+          final int h = img.getHeight();
+          final int rowLength = fmt.rowBytes(w) + 1;
+          final int rows = Math.max(BLOCK / rowLength, 1);
+          final int blocks = (h + rows - 1) / rows;
+
+          os.write(SIGNATURE);
+          byte[] ihdr = new byte[13];
+          putInt(ihdr, 0, w);
+          putInt(ihdr, 4, h);
+          ihdr[8] = (byte)fmt.depth;
+          ihdr[9] = (byte)fmt.colorType;
+          writeChunk(os, "IHDR", ihdr, ihdr.length);
+          if(fmt.palette != null) {
+               byte[] plte = new byte[3 * fmt.palette.size];
+               for(int i=0; i<fmt.palette.size; i++) {
+                    int c = fmt.palette.colors[i];
+                    plte[3 * i] = (byte)(c >> 16);
+                    plte[3 * i + 1] = (byte)(c >> 8);
+                    plte[3 * i + 2] = (byte)c;
+               }
+               writeChunk(os, "PLTE", plte, plte.length);
+          }
+
+          ArrayDeque<Future<Block>> queue = new ArrayDeque<Future<Block>>();
+          int submitted = 1;
+          long adler = 1;
+          byte[][] raw = null;
+          try {
+               // Blocks are created in order, so tiled images are read from top to bottom
+               for(int i=0; i<blocks; i++) {
+                    Block b = null;
+                    if(i == 0 || parallel < 2) {
+                         raw = tiles == null ? null : tiles.readBlock(fmt, i * rows, Math.min(h, (i + 1) * rows), raw);
+                         b = new Block(bi, fmt, w, h, i * rows, rows, i == blocks - 1, raw);
+                    }
+                    for(; parallel > 1 && submitted < blocks && submitted < i + parallel; submitted++) {
+                         raw = tiles == null ? null
+                                 : tiles.readBlock(fmt, submitted * rows, Math.min(h, (submitted + 1) * rows), raw);
+                         queue.add(pool.submit(new Block(bi, fmt, w, h, submitted * rows, rows, submitted == blocks - 1, raw)));
+                    }
+                    if(b != null)
+                         b.call();
+                    else
+                         b = get(queue.remove());
+                    adler = combineAdler(adler, b.adler, b.length);
+                    if(i == 0)
+                         b.data.prepend(zlibHeader());
+                    if(i == blocks - 1) {
+                         byte[] tail = new byte[4];
+                         putInt(tail, 0, (int)adler);
+                         b.data.write(tail);
+                    }
+                    writeChunk(os, "IDAT", b.data.array(), b.data.size());
+               }
+          } finally {
+               for(Future<Block> f : queue)
+                    f.cancel(true);
+          }
+          writeChunk(os, "IEND", new byte[0], 0);
+          os.flush();
+     }
+
+     // -- Helper methods --
+
+     private static int indexOf(String filter) {
+          for(int i=0; i<FILTERS.length; i++)
+               if(FILTERS[i].equals(filter))
+                    return i;
+          return -1;
+     }
+
+     private static Block get(Future<Block> f) throws IOException {
+          try {
+               return f.get();
+          } catch(InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new InterruptedIOException("Interrupted while encoding PNG");
+          } catch(ExecutionException e) {
+               if(e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+               throw new IOException("Problem encoding PNG; " + e.getCause(), e.getCause());
+          }
+     }
+
+     /** zlib stream header for the compression level, with a 32kB window */
+     private byte[] zlibHeader() {
+          int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+          int cmf = 0x78;
+          int flg = flevel << 6;
+          flg += (31 - (cmf * 256 + flg) % 31) % 31;
+          return new byte[] {(byte)cmf, (byte)flg};
+     }
+
+     /**
+      * Adler-32 of two concatenated sequences, from the Adler-32 of each,
+      * as {@code adler32_combine} in zlib
+      * @param len2 Length of the second sequence
+      */
+     static long combineAdler(long adler1, long adler2, long len2) {
+          final long base = 65521;
+          long rem = len2 % base;
+          long sum1 = adler1 & 0xffff;
+          long sum2 = (rem * sum1) % base;
+          sum1 += (adler2 & 0xffff) + base - 1;
+          sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+          if(sum1 >= base) sum1 -= base;
+          if(sum1 >= base) sum1 -= base;
+          if(sum2 >= base << 1) sum2 -= base << 1;
+          if(sum2 >= base) sum2 -= base;
+          return sum1 | (sum2 << 16);
+     }
+
+     private static void writeChunk(OutputStream os, String type, byte[] data, int length) throws IOException {
+          byte[] head = new byte[8];
+          putInt(head, 0, length);
+          for(int i=0; i<4; i++)
+               head[4 + i] = (byte)type.charAt(i);
+          CRC32 crc = new CRC32();
+          crc.update(head, 4, 4);
+          crc.update(data, 0, length);
+          byte[] tail = new byte[4];
+          putInt(tail, 0, (int)crc.getValue());
+          os.write(head);
+          os.write(data, 0, length);
+          os.write(tail);
+     }
+
+     private static void putInt(byte[] b, int off, int v) {
+          b[off] = (byte)(v >>> 24);
+          b[off + 1] = (byte)(v >>> 16);
+          b[off + 2] = (byte)(v >>> 8);
+          b[off + 3] = (byte)v;
+     }
+
+     /**
+      * Read one row of ARGB pixels. Integer RGB images are copied
+      * straight from the raster, rather than converted pixel by pixel,
+      * as are gray samples, which {@code getRGB} would convert as linear.
+      */
+     private static void readPixels(BufferedImage img, int y, int[] px) {
+          int w = px.length;
+          int type = img.getType();
+          if(type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+               img.getRaster().getDataElements(0, y, w, 1, px);
+          else if(type == BufferedImage.TYPE_BYTE_GRAY)
+               readGray(img.getRaster(), 0, y, px);
+          else
+               img.getRGB(0, y, w, 1, px, 0, w);
+     }
+
+     /** Read one row of 8-bit gray samples as opaque ARGB pixels */
+     private static void readGray(Raster r, int x, int y, int[] px) {
+          r.getSamples(x, y, px.length, 1, 0, px);
+          for(int i=0; i<px.length; i++)
+               px[i] = 0xff000000 | px[i] * 0x010101;
+     }
+
+     /**
+      * Filter a row
+      * @param type PNG filter type, 0 to 4
+      * @param cur The row
+      * @param prev The previous row, or zeros for the first row
+      * @param bpp Bytes per pixel
+      * @param out Receives the filter type and the filtered row
+      * @param off Where to start writing in {@code out}
+      * @return Sum of absolute differences of the filtered row
+      */
+     private static long filterRow(int type, byte[] cur, byte[] prev, int bpp, byte[] out, int off) {
+          final int n = cur.length;
+          out[off++] = (byte)type;
+          switch(type) {
+               case 0:
+                    System.arraycopy(cur, 0, out, off, n);
+                    break;
+               case 1:
+                    for(int i=0; i<n; i++)
+                         out[off + i] = (byte)(cur[i] - (i >= bpp ? cur[i - bpp] : 0));
+                    break;
+               case 2:
+                    for(int i=0; i<n; i++)
+                         out[off + i] = (byte)(cur[i] - prev[i]);
+                    break;
+               case 3:
+                    for(int i=0; i<n; i++) {
+                         int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                         out[off + i] = (byte)(cur[i] - ((a + (prev[i] & 0xff)) >> 1));
+                    }
+                    break;
+               case 4:
+                    for(int i=0; i<bpp && i<n; i++)
+                         out[off + i] = (byte)(cur[i] - prev[i]); // Paeth predicts b when a and c are 0
+                    for(int i=bpp; i<n; i++)
+                         out[off + i] = (byte)(cur[i] - paeth(cur[i - bpp] & 0xff, prev[i] & 0xff, prev[i - bpp] & 0xff));
+                    break;
+          }
+          long sum = 0;
+          for(int i=0; i<n; i++) {
+               int v = out[off + i];
+               sum += v < 0 ? -v : v;
+          }
+          return sum;
+     }
+
+     private static int paeth(int a, int b, int c) {
+          int p = a + b - c;
+          int pa = Math.abs(p - a);
+          int pb = Math.abs(p - b);
+          int pc = Math.abs(p - c);
+          if(pa <= pb && pa <= pc)
+               return a;
+          return pb <= pc ? b : c;
+     }
+
+     // -- Helper classes --
+
+     /** Growable byte buffer, with access to its contents */
+     private static class Bytes extends ByteArrayOutputStream {
+          byte[] array() { return buf; }
+          void prepend(byte[] b) {
+               write(b, 0, b.length); // Grow
+               System.arraycopy(buf, 0, buf, b.length, count - b.length);
+               System.arraycopy(b, 0, buf, 0, b.length);
+          }
+     }
+
+     /**
+      * PNG pixel format for an image: color type, bit depth, and
+      * for indexed color, the palette
+      */
+     private static class Format {
+
+          static final int GRAY = 0;
+          static final int RGB = 2;
+          static final int INDEXED = 3;
+          static final int RGBA = 6;
+
+          final int colorType;
+          final int depth;
+          final Palette palette;
+
+          Format(int colorType, int depth, Palette palette) {
+               this.colorType = colorType;
+               this.depth = depth;
+               this.palette = palette;
+          }
+
+          /**
+           * Find the smallest format that holds an image's pixels exactly.
+           * Stops reading as soon as the image is known to need RGB or RGBA.
+           */
+          static Format of(BufferedImage img) {
+               final boolean alpha = img.getColorModel().hasAlpha();
+               final int w = img.getWidth();
+               int[] px = new int[w];
+               Palette pal = new Palette();
+               boolean gray = true;
+               boolean few = true;
+               for(int y=0; y<img.getHeight() && (gray || few); y++) {
+                    readPixels(img, y, px);
+                    for(int x=0; x<w; x++) {
+                         int p = px[x];
+                         if(alpha && (p >>> 24) != 0xff)
+                              return new Format(RGBA, 8, null);
+                         int r = (p >> 16) & 0xff;
+                         int b = p & 0xff;
+                         if(gray && (r != b || ((p >> 8) & 0xff) != b))
+                              gray = false;
+                         if(few && !pal.add(p & 0xffffff)) {
+                              few = false;
+                              if(!gray)
+                                   break;
+                         }
+                    }
+               }
+               if(gray && few && pal.isBlackAndWhite())
+                    return new Format(GRAY, 1, null);
+               if(gray)
+                    return new Format(GRAY, 8, null);
+               if(few)
+                    return new Format(INDEXED, pal.size <= 2 ? 1 : pal.size <= 4 ? 2 : pal.size <= 16 ? 4 : 8, pal);
+               return new Format(RGB, 8, null);
+          }
+
+          /** Format for an image read a tile at a time, without checking its pixels */
+          static Format of(RenderedImage img) {
+               if(img instanceof StripImage && ((StripImage)img).isGray())
+                    return new Format(GRAY, 8, null);
+               return new Format(img.getColorModel().hasAlpha() ? RGBA : RGB, 8, null);
+          }
+
+          /** Bytes in an unfiltered row */
+          int rowBytes(int w) {
+               int channels = colorType == RGBA ? 4 : colorType == RGB ? 3 : 1;
+               return (int)(((long)w * channels * depth + 7) / 8);
+          }
+
+          /** Bytes per complete pixel, as used by the filters; at least 1 */
+          int filterBytes() {
+               return colorType == RGBA ? 4 : colorType == RGB ? 3 : 1;
+          }
+
+          /** Should the adaptive filter leave rows unfiltered? */
+          boolean unfiltered() {
+               return colorType == INDEXED || depth < 8;
+          }
+
+          /** Convert a row of ARGB pixels to this format */
+          void toBytes(int[] px, byte[] row) {
+               final int w = px.length;
+               if(colorType == RGB || colorType == RGBA) {
+                    int j = 0;
+                    for(int x=0; x<w; x++) {
+                         int p = px[x];
+                         row[j++] = (byte)(p >> 16);
+                         row[j++] = (byte)(p >> 8);
+                         row[j++] = (byte)p;
+                         if(colorType == RGBA)
+                              row[j++] = (byte)(p >>> 24);
+                    }
+                    return;
+               }
+               if(colorType == GRAY && depth == 8) {
+                    for(int x=0; x<w; x++)
+                         row[x] = (byte)px[x];
+                    return;
+               }
+               // Palette indices, or 1-bit gray samples, packed into bytes
+               Arrays.fill(row, (byte)0);
+               final int perByte = 8 / depth;
+               for(int x=0; x<w; x++) {
+                    int v = colorType == GRAY ? (px[x] & 1) : palette.indexOf(px[x] & 0xffffff);
+                    row[x / perByte] |= v << (8 - depth * (x % perByte + 1));
+               }
+          }
+     }
+
+     /** Up to 256 distinct RGB colors, in the order they were added */
+     private static class Palette {
+
+          private static final int SLOTS = 1024;
+
+          private final int[] keys = new int[SLOTS];
+          private final int[] slotIndex = new int[SLOTS];
+          final int[] colors = new int[256];
+          int size = 0;
+
+          Palette() {
+               Arrays.fill(keys, -1);
+          }
+
+          /** Index of an RGB color, or -1 if it isn't in the palette */
+          int indexOf(int c) {
+               for(int s=slot(c); keys[s] != -1; s=(s + 1) & (SLOTS - 1))
+                    if(keys[s] == c)
+                         return slotIndex[s];
+               return -1;
+          }
+
+          /**
+           * Add an RGB color, if it isn't already in the palette
+           * @return {@code false} if the palette is full
+           */
+          boolean add(int c) {
+               int s = slot(c);
+               for(; keys[s] != -1; s=(s + 1) & (SLOTS - 1))
+                    if(keys[s] == c)
+                         return true;
+               if(size == colors.length)
+                    return false;
+               keys[s] = c;
+               slotIndex[s] = size;
+               colors[size++] = c;
+               return true;
+          }
+
+          /** Are all the colors black or white? */
+          boolean isBlackAndWhite() {
+               for(int i=0; i<size; i++)
+                    if(colors[i] != 0x000000 && colors[i] != 0xffffff)
+                         return false;
+               return true;
+          }
+
+          private static int slot(int c) {
+               return (c * 0x9E3779B1 >>> 22) & (SLOTS - 1);
+          }
+     }
+
+     /** Reads the rows of an image from its tiles, from top to bottom */
+     private static class TileRows {
+
+          private final RenderedImage img;
+          private final boolean gray;
+          private final int[] px;
+          private Raster tile = null;
+
+          TileRows(RenderedImage img) {
+               SampleModel sm = img.getSampleModel();
+               gray = sm.getDataType() == DataBuffer.TYPE_BYTE && sm.getNumBands() == 1
+                       && img.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY;
+               if(!gray && (sm.getDataType() != DataBuffer.TYPE_INT
+                       || !(img.getColorModel() instanceof DirectColorModel)))
+                    throw new IllegalArgumentException("Tiled images must have packed int RGB pixels or 8-bit gray samples");
+               this.img = img;
+               px = new int[img.getWidth()];
+          }
+
+          /**
+           * Read the rows of a block, converted to a format, along with
+           * the rows of the previous block needed to filter and prime it
+           * @param start First row of the block
+           * @param end Row after the last row of the block
+           * @param prev Rows of the previous block, as returned by this method
+           * @return Rows {@code start - primed - 1} to {@code end - 1}, where
+           *     {@code primed} is as in {@link Block#call}; {@code null} for
+           *     rows above the image
+           */
+          byte[][] readBlock(Format fmt, int start, int end, byte[][] prev) {
+               int rowLength = fmt.rowBytes(px.length) + 1;
+               int first = start - Math.min(start, (WINDOW + rowLength - 1) / rowLength);
+               byte[][] rows = new byte[end - first + 1][];
+               int k = 0;
+               for(int y=first-1; y<start; y++, k++)
+                    rows[k] = y < 0 ? null : prev[prev.length - (start - y)];
+               for(int y=start; y<end; y++, k++) {
+                    int iy = img.getMinY() + y;
+                    if(tile == null || iy >= tile.getMinY() + tile.getHeight()) {
+                         int ty = img.getMinTileY() + (iy - img.getMinY()) / img.getTileHeight();
+                         tile = img.getTile(img.getMinTileX(), ty);
+                    }
+                    if(gray)
+                         readGray(tile, img.getMinX(), iy, px);
+                    else
+                         tile.getDataElements(img.getMinX(), iy, px.length, 1, px);
+                    rows[k] = new byte[rowLength - 1];
+                    fmt.toBytes(px, rows[k]);
+               }
+               return rows;
+          }
+     }
+
+     /** Filters and compresses one block of rows */
+     private class Block implements Callable<Block> {
+
+          private final BufferedImage img;
+          private final Format fmt;
+          private final int width;
+          private final int start;
+          private final int end;
+          private final boolean last;
+          private final byte[][] raw;
+
+          final Bytes data = new Bytes();
+          long adler;
+          long length;
+
+          /**
+           * @param img The image, or {@code null} if {@code raw} is given
+           * @param w Image width
+           * @param h Image height
+           * @param start First row of the block
+           * @param rows Number of rows, or fewer at the bottom of the image
+           * @param last Is this the last block of the image?
+           * @param raw Rows already converted to the format, as returned by
+           *     {@link TileRows#readBlock}, or {@code null} to read them from {@code img}
+           */
+          Block(BufferedImage img, Format fmt, int w, int h, int start, int rows, boolean last, byte[][] raw) {
+               this.img = img;
+               this.fmt = fmt;
+               this.width = w;
+               this.start = start;
+               this.end = Math.min(start + rows, h);
+               this.last = last;
+               this.raw = raw;
+          }
+
+          @Override
+          public Block call() {
+               final int bpp = fmt.filterBytes();
+               final int w = width;
+               final int rowLength = fmt.rowBytes(w) + 1;
+               final int type = filter == ADAPTIVE && fmt.unfiltered() ? 0 : filter;
+               // Rows at the end of the previous block are filtered again to prime the dictionary
+               final int primed = Math.min(start, (WINDOW + rowLength - 1) / rowLength);
+               final int first = start - primed;
+               byte[] filtered = new byte[(end - first) * rowLength];
+               byte[] prev = new byte[rowLength - 1];
+               byte[] cur = new byte[rowLength - 1];
+               byte[][] trial = type == ADAPTIVE ? new byte[ADAPTIVE][rowLength] : null;
+               int[] px = raw == null ? new int[w] : null;
+               if(raw != null && raw[0] != null)
+                    prev = raw[0];
+               else if(first > 0) {
+                    readPixels(img, first - 1, px);
+                    fmt.toBytes(px, prev);
+               }
+               for(int y=first; y<end; y++) {
+                    if(raw != null)
+                         cur = raw[y - first + 1];
+                    else {
+                         readPixels(img, y, px);
+                         fmt.toBytes(px, cur);
+                    }
+                    int off = (y - first) * rowLength;
+                    if(type != ADAPTIVE)
+                         filterRow(type, cur, prev, bpp, filtered, off);
+                    else {
+                         int best = 0;
+                         long bestSum = Long.MAX_VALUE;
+                         for(int t=0; t<ADAPTIVE; t++) {
+                              long sum = filterRow(t, cur, prev, bpp, trial[t], 0);
+                              if(sum < bestSum) {
+                                   best = t;
+                                   bestSum = sum;
+                              }
+                         }
+                         System.arraycopy(trial[best], 0, filtered, off, rowLength);
+                    }
+                    byte[] t = prev;
+                    prev = cur;
+                    cur = t;
+               }
+
+               final int dataStart = primed * rowLength;
+               final int dataLength = filtered.length - dataStart;
+               Adler32 a = new Adler32();
+               a.update(filtered, dataStart, dataLength);
+               adler = a.getValue();
+               length = dataLength;
+
+               Deflater d = new Deflater(level, true);
+               try {
+                    if(dataStart > 0) {
+                         int dict = Math.min(dataStart, WINDOW);
+                         d.setDictionary(filtered, dataStart - dict, dict);
+                    }
+                    d.setInput(filtered, dataStart, dataLength);
+                    byte[] buf = new byte[Math.max(Math.min(dataLength, BLOCK), 4096)];
+                    if(last) {
+                         d.finish();
+                         while(!d.finished())
+                              data.write(buf, 0, d.deflate(buf));
+                    } else {
+                         int n;
+                         do {
+                              n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                              data.write(buf, 0, n);
+                         } while(n == buf.length);
+                    }
+               } finally {
+                    d.end();
+               }
+               return this;
+          }
+     }
+
+}
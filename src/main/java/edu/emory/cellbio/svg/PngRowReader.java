@@ -0,0 +1,323 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decode a region of a PNG file one row at a time.
+ *
+ * <p> ImageIO can only decode a PNG file all at once, or a region of it
+ * by decoding everything above the region again each time. This reader
+ * inflates and unfilters rows as they are read, keeping only the
+ * previous row, so a region of any size can be read in constant memory.
+ * Rows above the region are decoded and dropped.
+ *
+ * <p> Only non-interlaced, opaque images with 8-bit RGB, grayscale, or
+ * indexed color are handled; {@link #open} returns {@code null} for
+ * anything else, including images with an embedded color profile, which
+ * ImageIO would apply. Pixels are the same as ImageIO's, converted to
+ * RGB.
+ *
+ * @author Benjamin Nanes
+ */
+public class PngRowReader extends StripImage.Rows {
+
+     // -- Fields --
+
+     private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+     private static final int GRAY = 0;
+     private static final int RGB = 2;
+     private static final int INDEXED = 3;
+
+     private final DataInputStream in;
+     private final Inflater inflater = new Inflater();
+     private final InputStream pixels;
+     private final int colorType;
+     private final int depth;
+     private final int[] palette;
+     private final Rectangle region;
+     private final int xStep;
+     private final int yStep;
+     private final int bpp;
+     private byte[] prev;
+     private byte[] cur;
+     private int nextRow = 0;
+
+     // -- Constructors --
+
+     private PngRowReader(DataInputStream in, Header hd, Rectangle region, int xStep, int yStep) {
+          super((region.width + xStep - 1) / xStep, (region.height + yStep - 1) / yStep);
+          this.in = in;
+          this.pixels = new InflaterInputStream(new IdatInputStream(in, hd.firstIdat), inflater, 1 << 16);
+          this.colorType = hd.colorType;
+          this.depth = hd.depth;
+          this.palette = hd.palette;
+          this.region = region;
+          this.xStep = xStep;
+          this.yStep = yStep;
+          int rowBytes = (int)(((long)hd.width * (colorType == RGB ? 3 : 1) * depth + 7) / 8);
+          bpp = colorType == RGB ? 3 : 1;
+          prev = new byte[rowBytes];
+          cur = new byte[rowBytes];
+     }
+
+     // -- Methods --
+
+     /**
+      * Open a region of a PNG file
+      * <p> Rows are sampled as by ImageIO's source subsampling, starting at
+      * the region's top-left corner.
+      * @param region The region to read, in pixels
+      * @param xStep Horizontal subsampling step; 1 to keep every column
+      * @param yStep Vertical subsampling step; 1 to keep every row
+      * @return The rows of the region, or {@code null} if the file
+      *     isn't a PNG image this reader handles
+      */
+     public static PngRowReader open(File f, Rectangle region, int xStep, int yStep) throws IOException {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+          try {
+               Header hd = readHeader(in);
+               if(hd != null)
+                    return new PngRowReader(in, hd, region, xStep, yStep);
+          } catch(EOFException e) {
+               // Not a complete PNG file
+          } catch(IOException e) {
+               in.close();
+               throw e;
+          }
+          in.close();
+          return null;
+     }
+
+     @Override
+     public boolean isGray() {
+          return colorType == GRAY;
+     }
+
+     @Override
+     public void read(int[] row) throws IOException {
+          if(nextRow >= getHeight())
+               throw new EOFException("Read past the end of the region");
+          int skip = nextRow++ == 0 ? region.y : yStep - 1;
+          for(int i=0; i<skip; i++)
+               readRaw();
+          readRaw();
+          final int n = getWidth();
+          final int max = (1 << depth) - 1;
+          for(int i=0; i<n; i++) {
+               int x = region.x + i * xStep;
+               if(colorType == RGB) {
+                    int j = 3 * x;
+                    row[i] = ((cur[j] & 0xff) << 16) | ((cur[j + 1] & 0xff) << 8) | (cur[j + 2] & 0xff);
+                    continue;
+               }
+               int v;
+               if(depth == 8)
+                    v = cur[x] & 0xff;
+               else {
+                    int perByte = 8 / depth;
+                    v = ((cur[x / perByte] & 0xff) >> (8 - depth * (x % perByte + 1))) & max;
+               }
+               if(colorType == INDEXED)
+                    row[i] = v < palette.length ? palette[v] : 0;
+               else {
+                    v = v * 255 / max;
+                    row[i] = (v << 16) | (v << 8) | v;
+               }
+          }
+     }
+
+     @Override
+     public void close() throws IOException {
+          try {
+               pixels.close(); // Closes the file, but doesn't end an Inflater it was given
+          } finally {
+               inflater.end();
+          }
+     }
+
+     // -- Helper methods --
+
+     /**
+      * Read the chunks up to the first image data
+      * @return The image header, or {@code null} if the image isn't supported
+      */
+     private static Header readHeader(DataInputStream in) throws IOException {
+          if(in.readLong() != SIGNATURE)
+               return null;
+          Header hd = null;
+          while(true) {
+               int length = in.readInt();
+               String type = chunkType(in.readInt());
+               if(type.equals("IHDR")) {
+                    hd = new Header();
+                    hd.width = in.readInt();
+                    in.readInt(); // Height
+                    hd.depth = in.readUnsignedByte();
+                    hd.colorType = in.readUnsignedByte();
+                    int compression = in.readUnsignedByte();
+                    int filter = in.readUnsignedByte();
+                    int interlace = in.readUnsignedByte();
+                    skip(in, length - 13 + 4);
+                    boolean ok = compression == 0 && filter == 0 && interlace == 0
+                            && (hd.colorType == RGB ? hd.depth == 8
+                            : (hd.colorType == GRAY || hd.colorType == INDEXED) && hd.depth <= 8);
+                    if(!ok)
+                         return null;
+               } else if(hd == null) {
+                    return null;
+               } else if(type.equals("PLTE")) {
+                    int[] pal = new int[length / 3];
+                    for(int i=0; i<pal.length; i++)
+                         pal[i] = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                    skip(in, length - 3 * pal.length + 4);
+                    hd.palette = pal;
+               } else if(type.equals("tRNS") || type.equals("iCCP")) {
+                    return null; // Transparent, or color managed
+               } else if(type.equals("IDAT")) {
+                    if(hd.colorType == INDEXED && hd.palette == null)
+                         return null;
+                    hd.firstIdat = length;
+                    return hd;
+               } else {
+                    skip(in, length + 4L);
+               }
+          }
+     }
+
+     /** Read and unfilter the next row of the image */
+     private void readRaw() throws IOException {
+          byte[] t = prev;
+          prev = cur;
+          cur = t;
+          int type = pixels.read();
+          if(type < 0)
+               throw new EOFException("Unexpected end of image data");
+          int off = 0;
+          while(off < cur.length) {
+               int n = pixels.read(cur, off, cur.length - off);
+               if(n < 0)
+                    throw new EOFException("Unexpected end of image data");
+               off += n;
+          }
+          final int n = cur.length;
+          switch(type) {
+               case 0:
+                    break;
+               case 1:
+                    for(int i=bpp; i<n; i++)
+                         cur[i] += cur[i - bpp];
+                    break;
+               case 2:
+                    for(int i=0; i<n; i++)
+                         cur[i] += prev[i];
+                    break;
+               case 3:
+                    for(int i=0; i<n; i++) {
+                         int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                         cur[i] += (byte)((a + (prev[i] & 0xff)) >> 1);
+                    }
+                    break;
+               case 4:
+                    for(int i=0; i<n; i++) {
+                         int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                         int c = i >= bpp ? prev[i - bpp] & 0xff : 0;
+                         cur[i] += (byte)paeth(a, prev[i] & 0xff, c);
+                    }
+                    break;
+               default:
+                    throw new IOException("Invalid PNG filter type: " + type);
+          }
+     }
+
+     private static int paeth(int a, int b, int c) {
+          int p = a + b - c;
+          int pa = Math.abs(p - a);
+          int pb = Math.abs(p - b);
+          int pc = Math.abs(p - c);
+          if(pa <= pb && pa <= pc)
+               return a;
+          return pb <= pc ? b : c;
+     }
+
+     private static String chunkType(int t) {
+          return new String(new char[] {(char)(t >>> 24), (char)((t >> 16) & 0xff),
+               (char)((t >> 8) & 0xff), (char)(t & 0xff)});
+     }
+
+     private static void skip(DataInputStream in, long n) throws IOException {
+          while(n > 0) {
+               long k = in.skip(n);
+               if(k <= 0) {
+                    if(in.read() < 0)
+                         throw new EOFException();
+                    k = 1;
+               }
+               n -= k;
+          }
+     }
+
+     // -- Helper classes --
+
+     /** Values from the chunks before the image data */
+     private static class Header {
+          int width;
+          int depth;
+          int colorType;
+          int[] palette;
+          int firstIdat;
+     }
+
+     /** The data of consecutive IDAT chunks, as one stream */
+     private static class IdatInputStream extends InputStream {
+
+          private final DataInputStream in;
+          private int left;
+          private boolean done = false;
+
+          /** @param first Length of the first IDAT chunk, whose header has been read */
+          IdatInputStream(DataInputStream in, int first) {
+               this.in = in;
+               this.left = first;
+          }
+
+          @Override
+          public int read() throws IOException {
+               byte[] b = new byte[1];
+               return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+               while(left == 0) {
+                    if(done)
+                         return -1;
+                    in.readInt(); // CRC
+                    int length = in.readInt();
+                    if(!chunkType(in.readInt()).equals("IDAT")) {
+                         done = true;
+                         return -1;
+                    }
+                    left = length;
+               }
+               int n = in.read(b, off, Math.min(len, left));
+               if(n > 0)
+                    left -= n;
+               return n;
+          }
+
+          @Override
+          public void close() throws IOException {
+               in.close();
+          }
+     }
+
+}
@@ -0,0 +1,559 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downsample RGB images with a selectable filter.
+ *
+ * <p> Available filters:
+ * <ul>
+ * <li> {@code bicubic} &mdash; a single Java2D {@link AffineTransformOp}
+ *      bicubic pass. This is the original behavior, and is fast for small
+ *      reductions, but aliases at scales below 0.5.
+ * <li> {@code area} &mdash; each output pixel is the average of the
+ *      source pixels it covers, weighted by overlap.
+ * <li> {@code progressive} &mdash; repeated halving by 2x2 averaging,
+ *      then one bicubic pass for the remaining scale.
+ * <li> {@code lanczos} &mdash; a 3-lobed Lanczos filter, widened
+ *      by the reduction factor.
+ * </ul>
+ * All filters other than {@code bicubic} are applied separably, first
+ * along rows, then along columns, on packed {@code int} RGB pixels.
+ * Each pass is split into strips of rows, run in parallel.
+ * Output images are {@code TYPE_INT_RGB}, or {@code TYPE_BYTE_GRAY} for
+ * {@code TYPE_BYTE_GRAY} sources; alpha is discarded.
+ *
+ * @author Benjamin Nanes
+ */
+public class Resampler {
+
+     // -- Fields --
+
+     /** Names of the available filters, for command line and dialog options */
+     public static final String[] KERNELS = {"bicubic", "area", "progressive", "lanczos"};
+
+     private static final double LANCZOS_LOBES = 3;
+     /**
+      * For reductions greater than this, area-average to twice the target
+      * size first, so the widened Lanczos filter doesn't cover too many pixels
+      */
+     private static final int LANCZOS_PREREDUCE = 4;
+     /** Bicubic convolution parameter, as used by Java2D */
+     private static final double CUBIC_A = -0.5;
+     /** Don't split passes into strips with fewer rows than this */
+     private static final int MIN_STRIP = 64;
+
+     private final String kernel;
+     private final int strips;
+     private final ExecutorService pool;
+
+     // -- Constructors --
+
+     /**
+      * @param kernel One of {@link #KERNELS}
+      * @param strips Maximum number of strips each pass is split into
+      * @param pool Runs all but the first strip of each pass; may be
+      *     {@code null} if {@code strips} is 1
+      */
+     public Resampler(String kernel, int strips, ExecutorService pool) {
+          if(!isKernel(kernel))
+               throw new IllegalArgumentException("Unknown resampling filter: " + kernel);
+          this.kernel = kernel;
+          this.strips = pool == null ? 1 : Math.max(strips, 1);
+          this.pool = pool;
+     }
+
+     // -- Methods --
+
+     /** Is {@code name} one of the available {@link #KERNELS}? */
+     public static boolean isKernel(String name) {
+          for(String k : KERNELS)
+               if(k.equals(name))
+                    return true;
+          return false;
+     }
+
+     /** Name of the filter used by this resampler */
+     public String getKernel() {
+          return kernel;
+     }
+
+     /**
+      * Scale an image
+      * @param img The source image
+      * @param sx Horizontal scale factor
+      * @param sy Vertical scale factor
+      */
+     public BufferedImage resample(BufferedImage img, double sx, double sy) throws EmbedAndCropException {
+          if(kernel.equals("bicubic"))
+               return resampleJava2D(img, sx, sy);
+          final boolean gray = img.getType() == BufferedImage.TYPE_BYTE_GRAY;
+          int dw = size(img.getWidth(), sx);
+          int dh = size(img.getHeight(), sy);
+          if(kernel.equals("progressive")) {
+               while(dw <= img.getWidth() / 2 && dh <= img.getHeight() / 2)
+                    img = halve(img);
+               img = resize(img, dw, dh, "bicubic");
+          } else {
+               if(kernel.equals("lanczos") && dw <= img.getWidth() / LANCZOS_PREREDUCE
+                       && dh <= img.getHeight() / LANCZOS_PREREDUCE)
+                    img = resize(img, 2 * dw, 2 * dh, "area");
+               img = resize(img, dw, dh, kernel);
+          }
+          return gray ? toGray(img) : img;
+     }
+
+     /**
+      * Scale the rows of a {@link StripImage}, holding only the source
+      * rows under the filter at once. The result is the same as
+      * {@link #resample(BufferedImage, double, double)}, except that the
+      * {@code bicubic} filter is applied separably, rather than by Java2D.
+      * Passes are not split into strips.
+      * @param src Source rows; closed when the result is closed
+      * @param sx Horizontal scale factor
+      * @param sy Vertical scale factor
+      */
+     public StripImage.Rows resample(StripImage.Rows src, double sx, double sy) {
+          int dw = size(src.getWidth(), sx);
+          int dh = size(src.getHeight(), sy);
+          if(kernel.equals("progressive")) {
+               while(dw <= src.getWidth() / 2 && dh <= src.getHeight() / 2)
+                    src = new HalveRows(src);
+               return new ResizeRows(src, dw, dh, "bicubic");
+          }
+          if(kernel.equals("lanczos") && dw <= src.getWidth() / LANCZOS_PREREDUCE
+                  && dh <= src.getHeight() / LANCZOS_PREREDUCE)
+               src = new ResizeRows(src, 2 * dw, 2 * dh, "area");
+          return new ResizeRows(src, dw, dh, kernel);
+     }
+
+     /**
+      * Size of a scaled dimension, as resampled by any filter other than
+      * {@code bicubic} with {@link #resample(BufferedImage, double, double)},
+      * or by any filter with {@link #resample(StripImage.Rows, double, double)}
+      * @param n Source size (pixels)
+      * @param s Scale factor
+      */
+     public static int size(int n, double s) {
+          return Math.max((int)Math.round(n * s), 1);
+     }
+
+     // -- Helper methods --
+
+     private BufferedImage resampleJava2D(BufferedImage img, double sx, double sy) {
+          AffineTransformOp ato = new AffineTransformOp(
+                  AffineTransform.getScaleInstance(sx, sy), AffineTransformOp.TYPE_BICUBIC);
+          BufferedImage out = ato.createCompatibleDestImage(img, img.getColorModel());
+          ato.filter(img, out);
+          return out;
+     }
+
+     /** Separable resize to exactly {@code dw x dh} pixels with the named filter */
+     private BufferedImage resize(final BufferedImage src, final int dw, final int dh, String filter)
+             throws EmbedAndCropException {
+          final int w = src.getWidth();
+          final int h = src.getHeight();
+          final Weights wx = new Weights(w, dw, filter);
+          final Weights wy = new Weights(h, dh, filter);
+          final int[] tmp = new int[dw * h];
+          BufferedImage out = new BufferedImage(dw, dh, BufferedImage.TYPE_INT_RGB);
+          final int[] dst = ((DataBufferInt)out.getRaster().getDataBuffer()).getData();
+
+          // Rows: src (w x h) -> tmp (dw x h)
+          runStrips(h, new Strip() {
+               @Override
+               public void run(int y0, int y1) {
+                    int[] row = new int[w];
+                    float[] rs = new float[w];
+                    float[] gs = new float[w];
+                    float[] bs = new float[w];
+                    for(int y=y0; y<y1; y++) {
+                         readRow(src, y, row);
+                         for(int x=0; x<w; x++) {
+                              int p = row[x];
+                              rs[x] = (p >> 16) & 0xff;
+                              gs[x] = (p >> 8) & 0xff;
+                              bs[x] = p & 0xff;
+                         }
+                         int o = y * dw;
+                         for(int i=0; i<dw; i++) {
+                              int j = wx.start[i];
+                              float[] k = wx.weights[i];
+                              float r = 0, g = 0, b = 0;
+                              for(int n=0; n<k.length; n++) {
+                                   r += k[n] * rs[j + n];
+                                   g += k[n] * gs[j + n];
+                                   b += k[n] * bs[j + n];
+                              }
+                              tmp[o + i] = pack(r, g, b);
+                         }
+                    }
+               }
+          });
+
+          // Columns: tmp (dw x h) -> dst (dw x dh)
+          runStrips(dh, new Strip() {
+               @Override
+               public void run(int y0, int y1) {
+                    float[] r = new float[dw];
+                    float[] g = new float[dw];
+                    float[] b = new float[dw];
+                    for(int y=y0; y<y1; y++) {
+                         Arrays.fill(r, 0);
+                         Arrays.fill(g, 0);
+                         Arrays.fill(b, 0);
+                         int j = wy.start[y];
+                         float[] k = wy.weights[y];
+                         for(int n=0; n<k.length; n++) {
+                              int o = (j + n) * dw;
+                              float kn = k[n];
+                              for(int x=0; x<dw; x++) {
+                                   int p = tmp[o + x];
+                                   r[x] += kn * ((p >> 16) & 0xff);
+                                   g[x] += kn * ((p >> 8) & 0xff);
+                                   b[x] += kn * (p & 0xff);
+                              }
+                         }
+                         int o = y * dw;
+                         for(int x=0; x<dw; x++)
+                              dst[o + x] = pack(r[x], g[x], b[x]);
+                    }
+               }
+          });
+
+          return out;
+     }
+
+     /**
+      * Halve each dimension by averaging 2x2 blocks. An odd last row or column
+      * is dropped, so the result is slightly less than half the size.
+      */
+     private BufferedImage halve(final BufferedImage src) throws EmbedAndCropException {
+          final int dw = Math.max(src.getWidth() / 2, 1);
+          final int dh = Math.max(src.getHeight() / 2, 1);
+          final int w = Math.min(src.getWidth(), 2 * dw);
+          BufferedImage out = new BufferedImage(dw, dh, BufferedImage.TYPE_INT_RGB);
+          final int[] dst = ((DataBufferInt)out.getRaster().getDataBuffer()).getData();
+          final int h = src.getHeight();
+          runStrips(dh, new Strip() {
+               @Override
+               public void run(int y0, int y1) {
+                    int[] a = new int[w];
+                    int[] b = new int[w];
+                    for(int y=y0; y<y1; y++) {
+                         readRow(src, 2 * y, a);
+                         readRow(src, Math.min(2 * y + 1, h - 1), b);
+                         int o = y * dw;
+                         for(int x=0; x<dw; x++) {
+                              int x1 = Math.min(2 * x + 1, w - 1);
+                              int p = a[2 * x], q = a[x1], r = b[2 * x], t = b[x1];
+                              int rr = ((p >> 16) & 0xff) + ((q >> 16) & 0xff) + ((r >> 16) & 0xff) + ((t >> 16) & 0xff);
+                              int gg = ((p >> 8) & 0xff) + ((q >> 8) & 0xff) + ((r >> 8) & 0xff) + ((t >> 8) & 0xff);
+                              int bb = (p & 0xff) + (q & 0xff) + (r & 0xff) + (t & 0xff);
+                              dst[o + x] = (((rr + 2) >> 2) << 16) | (((gg + 2) >> 2) << 8) | ((bb + 2) >> 2);
+                         }
+                    }
+               }
+          });
+          return out;
+     }
+
+     /**
+      * Read one row of packed RGB pixels. Gray samples are copied to
+      * each channel as they are, rather than converted by {@code getRGB}.
+      */
+     private static void readRow(BufferedImage img, int y, int[] row) {
+          int type = img.getType();
+          if(type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+               Raster r = img.getRaster();
+               r.getDataElements(0, y, row.length, 1, row);
+          } else if(type == BufferedImage.TYPE_BYTE_GRAY) {
+               img.getRaster().getSamples(0, y, row.length, 1, 0, row);
+               for(int x=0; x<row.length; x++)
+                    row[x] *= 0x010101;
+          } else {
+               img.getRGB(0, y, row.length, 1, row, 0, row.length);
+          }
+     }
+
+     /** Keep one channel of a gray {@code TYPE_INT_RGB} image */
+     private static BufferedImage toGray(BufferedImage img) {
+          BufferedImage out = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+          int[] src = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+          byte[] dst = ((DataBufferByte)out.getRaster().getDataBuffer()).getData();
+          for(int i=0; i<dst.length; i++)
+               dst[i] = (byte)src[i];
+          return out;
+     }
+
+     private static int pack(float r, float g, float b) {
+          return (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+     }
+
+     private static int clamp(float v) {
+          int i = (int)(v + 0.5f);
+          return i < 0 ? 0 : (i > 255 ? 255 : i);
+     }
+
+     /** Split {@code rows} into strips and run them, using the pool for all but the first */
+     private void runStrips(int rows, final Strip s) throws EmbedAndCropException {
+          int n = Math.min(strips, Math.max(rows / MIN_STRIP, 1));
+          if(n < 2) {
+               s.run(0, rows);
+               return;
+          }
+          List<Future<?>> fs = new ArrayList<Future<?>>();
+          for(int i=1; i<n; i++) {
+               final int y0 = (int)((long)rows * i / n);
+               final int y1 = (int)((long)rows * (i + 1) / n);
+               fs.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() { s.run(y0, y1); }
+               }));
+          }
+          s.run(0, (int)((long)rows / n));
+          try {
+               for(Future<?> f : fs)
+                    f.get();
+          } catch(InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new EmbedAndCropException("Interrupted while resampling");
+          } catch(ExecutionException e) {
+               if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+               throw new EmbedAndCropException("Problem resampling image; " + e.getCause());
+          } finally {
+               for(Future<?> f : fs)
+                    f.cancel(true);
+          }
+     }
+
+     // -- Helper classes --
+
+     /** A range of rows to process */
+     private interface Strip {
+          void run(int y0, int y1);
+     }
+
+     /**
+      * Rows of a separable resize, as in {@link #resize}. Each source
+      * row is filtered along the row as it is read, and kept until
+      * no more output rows need it.
+      */
+     private static class ResizeRows extends StripImage.Rows {
+
+          private final StripImage.Rows src;
+          private final Weights wx;
+          private final Weights wy;
+          private final int[][] ring;
+          private final int[] row;
+          private final float[] rs, gs, bs;
+          private int loaded = 0;
+          private int next = 0;
+
+          ResizeRows(StripImage.Rows src, int dw, int dh, String filter) {
+               super(dw, dh);
+               this.src = src;
+               wx = new Weights(src.getWidth(), dw, filter);
+               wy = new Weights(src.getHeight(), dh, filter);
+               int taps = 1;
+               for(float[] k : wy.weights)
+                    taps = Math.max(taps, k.length);
+               ring = new int[taps][dw];
+               int w = src.getWidth();
+               row = new int[w];
+               rs = new float[Math.max(w, dw)];
+               gs = new float[Math.max(w, dw)];
+               bs = new float[Math.max(w, dw)];
+          }
+
+          @Override
+          public boolean isGray() {
+               return src.isGray();
+          }
+
+          @Override
+          public void read(int[] out) throws IOException {
+               final int dw = getWidth();
+               final int y = next++;
+               final int j = wy.start[y];
+               final float[] k = wy.weights[y];
+               for(; loaded < j + k.length; loaded++)
+                    filterRow(ring[loaded % ring.length]);
+               Arrays.fill(rs, 0, dw, 0);
+               Arrays.fill(gs, 0, dw, 0);
+               Arrays.fill(bs, 0, dw, 0);
+               for(int n=0; n<k.length; n++) {
+                    int[] t = ring[(j + n) % ring.length];
+                    float kn = k[n];
+                    for(int x=0; x<dw; x++) {
+                         int p = t[x];
+                         rs[x] += kn * ((p >> 16) & 0xff);
+                         gs[x] += kn * ((p >> 8) & 0xff);
+                         bs[x] += kn * (p & 0xff);
+                    }
+               }
+               for(int x=0; x<dw; x++)
+                    out[x] = pack(rs[x], gs[x], bs[x]);
+          }
+
+          @Override
+          public void close() throws IOException {
+               src.close();
+          }
+
+          /** Read the next source row and filter it along the row */
+          private void filterRow(int[] dst) throws IOException {
+               src.read(row);
+               for(int x=0; x<row.length; x++) {
+                    int p = row[x];
+                    rs[x] = (p >> 16) & 0xff;
+                    gs[x] = (p >> 8) & 0xff;
+                    bs[x] = p & 0xff;
+               }
+               for(int i=0; i<dst.length; i++) {
+                    int j = wx.start[i];
+                    float[] k = wx.weights[i];
+                    float r = 0, g = 0, b = 0;
+                    for(int n=0; n<k.length; n++) {
+                         r += k[n] * rs[j + n];
+                         g += k[n] * gs[j + n];
+                         b += k[n] * bs[j + n];
+                    }
+                    dst[i] = pack(r, g, b);
+               }
+          }
+     }
+
+     /** Rows of a 2x2 average, as in {@link #halve} */
+     private static class HalveRows extends StripImage.Rows {
+
+          private final StripImage.Rows src;
+          private final int[] a;
+          private final int[] b;
+          private final int w;
+
+          HalveRows(StripImage.Rows src) {
+               super(Math.max(src.getWidth() / 2, 1), Math.max(src.getHeight() / 2, 1));
+               this.src = src;
+               a = new int[src.getWidth()];
+               b = new int[src.getWidth()];
+               w = Math.min(src.getWidth(), 2 * getWidth());
+          }
+
+          @Override
+          public boolean isGray() {
+               return src.isGray();
+          }
+
+          @Override
+          public void read(int[] out) throws IOException {
+               src.read(a);
+               if(src.getHeight() > 1)
+                    src.read(b);
+               else
+                    System.arraycopy(a, 0, b, 0, a.length);
+               for(int x=0; x<getWidth(); x++) {
+                    int x1 = Math.min(2 * x + 1, w - 1);
+                    int p = a[2 * x], q = a[x1], r = b[2 * x], t = b[x1];
+                    int rr = ((p >> 16) & 0xff) + ((q >> 16) & 0xff) + ((r >> 16) & 0xff) + ((t >> 16) & 0xff);
+                    int gg = ((p >> 8) & 0xff) + ((q >> 8) & 0xff) + ((r >> 8) & 0xff) + ((t >> 8) & 0xff);
+                    int bb = (p & 0xff) + (q & 0xff) + (r & 0xff) + (t & 0xff);
+                    out[x] = (((rr + 2) >> 2) << 16) | (((gg + 2) >> 2) << 8) | ((bb + 2) >> 2);
+               }
+          }
+
+          @Override
+          public void close() throws IOException {
+               src.close();
+          }
+     }
+
+     /** Filter weights for each output index along one axis */
+     private static class Weights {
+
+          /** First source index contributing to each output index */
+          final int[] start;
+          /** Normalized weights of the contributing source indices */
+          final float[][] weights;
+
+          Weights(int n, int dn, String filter) {
+               start = new int[dn];
+               weights = new float[dn][];
+               double s = ((double)dn) / n;
+               for(int i=0; i<dn; i++) {
+                    double[] k;
+                    int a;
+                    if(filter.equals("area")) {
+                         // Overlap of [i/s, (i+1)/s] with each source pixel
+                         double x0 = i / s;
+                         double x1 = Math.min((i + 1) / s, n);
+                         a = (int)Math.floor(x0);
+                         int b = Math.min((int)Math.ceil(x1), n);
+                         k = new double[Math.max(b - a, 1)];
+                         for(int j=a; j<b; j++)
+                              k[j - a] = Math.min(j + 1, x1) - Math.max(j, x0);
+                    } else {
+                         // Interpolating when enlarging; widened by 1/s when reducing
+                         double fs = Math.max(1 / s, 1);
+                         double support = (filter.equals("lanczos") ? LANCZOS_LOBES : 2) * fs;
+                         double c = (i + 0.5) / s - 0.5;
+                         a = (int)Math.floor(c - support) + 1;
+                         int b = (int)Math.floor(c + support);
+                         k = new double[b - a + 1];
+                         for(int j=a; j<=b; j++) {
+                              double x = (j - c) / fs;
+                              k[j - a] = filter.equals("lanczos") ? lanczos(x) : cubic(x);
+                         }
+                         // Fold weights outside the image onto the edge pixels
+                         int a2 = Math.max(a, 0);
+                         int b2 = Math.min(b, n - 1);
+                         double[] kk = new double[b2 - a2 + 1];
+                         for(int j=a; j<=b; j++)
+                              kk[Math.min(Math.max(j, a2), b2) - a2] += k[j - a];
+                         k = kk;
+                         a = a2;
+                    }
+                    double sum = 0;
+                    for(double v : k)
+                         sum += v;
+                    float[] f = new float[k.length];
+                    for(int j=0; j<k.length; j++)
+                         f[j] = (float)(sum == 0 ? 1.0 / k.length : k[j] / sum);
+                    start[i] = a;
+                    weights[i] = f;
+               }
+          }
+
+          private static double cubic(double x) {
+               x = Math.abs(x);
+               if(x < 1)
+                    return ((CUBIC_A + 2) * x - (CUBIC_A + 3)) * x * x + 1;
+               if(x < 2)
+                    return ((CUBIC_A * x - 5 * CUBIC_A) * x + 8 * CUBIC_A) * x - 4 * CUBIC_A;
+               return 0;
+          }
+
+          private static double lanczos(double x) {
+               if(x == 0)
+                    return 1;
+               if(Math.abs(x) >= LANCZOS_LOBES)
+                    return 0;
+               double px = Math.PI * x;
+               return LANCZOS_LOBES * Math.sin(px) * Math.sin(px / LANCZOS_LOBES) / (px * px);
+          }
+     }
+
+}
@@ -0,0 +1,203 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+
+/**
+ * Convert decoded images to {@code TYPE_INT_RGB}, or gray images to
+ * {@code TYPE_BYTE_GRAY}.
+ *
+ * <p> Java2D draws the standard 8-bit types, e.g. {@code TYPE_3BYTE_BGR}
+ * from Jpeg files, with native loops, but falls back to converting
+ * each pixel through its color model for other layouts. Two of those
+ * that ImageIO decodes to are copied here with loops over the raster
+ * data instead, about ten times faster: interleaved 8-bit RGB, e.g.
+ * from TIFF files, and indexed color packed 1, 2 or 4 bits per pixel,
+ * e.g. from black and white PNG files. The pixels are the same as
+ * drawing the image on an RGB image, which is done for everything else,
+ * e.g. images with alpha, which is composited over black.
+ *
+ * <p> Gray images are kept gray with {@link #toRGBOrGray}, so they are
+ * resampled and encoded with one channel rather than three, as gray PNG
+ * or Jpeg files. Their samples are copied as they are, rather than
+ * converted through the color model, which treats gray as linear.
+ *
+ * @author Benjamin Nanes
+ */
+public class RgbConverter {
+
+     // -- Constructors --
+
+     private RgbConverter() { }
+
+     // -- Methods --
+
+     /**
+      * Convert an image to {@code TYPE_INT_RGB}
+      * @return The image itself if it's already {@code TYPE_INT_RGB},
+      *     otherwise a converted copy
+      */
+     public static BufferedImage toRGB(BufferedImage img) {
+          if(img.getType() == BufferedImage.TYPE_INT_RGB)
+               return img;
+          BufferedImage out = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+          int[] dst = ((DataBufferInt)out.getRaster().getDataBuffer()).getData();
+          if(!copyInterleaved(img, dst) && !copyPacked(img, dst))
+               out.createGraphics().drawImage(img, 0, 0, null);
+          return out;
+     }
+
+     /**
+      * Convert an image to {@code TYPE_BYTE_GRAY} if it's gray, or to
+      * {@code TYPE_INT_RGB} otherwise
+      * @return The image itself if it's already of that type, otherwise
+      *     a converted copy
+      * @see #isGray
+      */
+     public static BufferedImage toRGBOrGray(BufferedImage img) {
+          return isGray(img) ? toGray(img) : toRGB(img);
+     }
+
+     /**
+      * Is the image opaque and gray, with at most 8 bits per sample? True
+      * for single-channel gray images, and for images with a palette of
+      * only gray colors, e.g. black and white PNG files.
+      */
+     public static boolean isGray(BufferedImage img) {
+          ColorModel cm = img.getColorModel();
+          if(cm.hasAlpha() || img.getRaster().getNumBands() != 1 || img.getSampleModel().getSampleSize(0) > 8)
+               return false;
+          if(cm instanceof IndexColorModel) {
+               IndexColorModel icm = (IndexColorModel)cm;
+               for(int i=0; i<icm.getMapSize(); i++)
+                    if(icm.getRed(i) != icm.getGreen(i) || icm.getRed(i) != icm.getBlue(i))
+                         return false;
+               return true;
+          }
+          return cm.getNumComponents() == 1 && cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY;
+     }
+
+     /**
+      * Convert a gray image, as defined by {@link #isGray}, to
+      * {@code TYPE_BYTE_GRAY}. Samples of fewer than 8 bits are scaled
+      * to 8 bits; palette indices are replaced by their gray level.
+      * @return The image itself if it's already {@code TYPE_BYTE_GRAY},
+      *     otherwise a converted copy
+      */
+     public static BufferedImage toGray(BufferedImage img) {
+          if(img.getType() == BufferedImage.TYPE_BYTE_GRAY)
+               return img;
+          final int w = img.getWidth();
+          final int h = img.getHeight();
+          BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+          byte[] dst = ((DataBufferByte)out.getRaster().getDataBuffer()).getData();
+          Raster r = img.getRaster();
+          int[] lut = new int[1 << img.getSampleModel().getSampleSize(0)];
+          ColorModel cm = img.getColorModel();
+          for(int i=0; i<lut.length; i++) {
+               if(cm instanceof IndexColorModel)
+                    lut[i] = i < ((IndexColorModel)cm).getMapSize() ? ((IndexColorModel)cm).getRed(i) : 0;
+               else
+                    lut[i] = i * 255 / (lut.length - 1);
+          }
+          int[] row = new int[w];
+          int k = 0;
+          for(int y=0; y<h; y++) {
+               r.getSamples(r.getMinX(), r.getMinY() + y, w, 1, 0, row);
+               for(int x=0; x<w; x++)
+                    dst[k++] = (byte)lut[row[x]];
+          }
+          return out;
+     }
+
+     // -- Helper methods --
+
+     /**
+      * Copy opaque, interleaved 8-bit RGB samples of a custom layout
+      * @return {@code false} if the image has some other layout
+      */
+     private static boolean copyInterleaved(BufferedImage img, int[] dst) {
+          ColorModel cm = img.getColorModel();
+          Raster r = img.getRaster();
+          if(img.getType() != BufferedImage.TYPE_CUSTOM || !(cm instanceof ComponentColorModel)
+                  || cm.hasAlpha() || !cm.getColorSpace().isCS_sRGB()
+                  || !(r.getDataBuffer() instanceof DataBufferByte)
+                  || !(r.getSampleModel() instanceof ComponentSampleModel))
+               return false;
+          ComponentSampleModel sm = (ComponentSampleModel)r.getSampleModel();
+          if(sm.getNumBands() != 3)
+               return false;
+          for(int bits : sm.getSampleSize())
+               if(bits != 8)
+                    return false;
+          int[] banks = sm.getBankIndices();
+          if(banks[1] != banks[0] || banks[2] != banks[0])
+               return false;
+          DataBufferByte db = (DataBufferByte)r.getDataBuffer();
+          byte[] src = db.getData(banks[0]);
+          int[] off = sm.getBandOffsets();
+          int ps = sm.getPixelStride();
+          int ss = sm.getScanlineStride();
+          int base = db.getOffsets()[banks[0]]
+                  - r.getSampleModelTranslateY() * ss - r.getSampleModelTranslateX() * ps;
+          final int w = img.getWidth();
+          final int h = img.getHeight();
+          int k = 0;
+          for(int y=0; y<h; y++) {
+               final int o0 = base + y * ss + off[0];
+               final int o1 = base + y * ss + off[1];
+               final int o2 = base + y * ss + off[2];
+               for(int x=0, i=0; x<w; x++, i+=ps)
+                    dst[k++] = ((src[o0 + i] & 0xff) << 16) | ((src[o1 + i] & 0xff) << 8) | (src[o2 + i] & 0xff);
+          }
+          return true;
+     }
+
+     /**
+      * Look up opaque indexed pixels, packed 1, 2 or 4 bits per pixel,
+      * in the palette
+      * @return {@code false} if the image has some other layout, or the
+      *     palette has transparent colors
+      */
+     private static boolean copyPacked(BufferedImage img, int[] dst) {
+          ColorModel cm = img.getColorModel();
+          Raster r = img.getRaster();
+          if(!(cm instanceof IndexColorModel) || cm.getTransparency() != ColorModel.OPAQUE
+                  || !cm.getColorSpace().isCS_sRGB()
+                  || !(r.getDataBuffer() instanceof DataBufferByte)
+                  || !(r.getSampleModel() instanceof MultiPixelPackedSampleModel))
+               return false;
+          MultiPixelPackedSampleModel sm = (MultiPixelPackedSampleModel)r.getSampleModel();
+          final int bits = sm.getPixelBitStride();
+          if(bits != 1 && bits != 2 && bits != 4)
+               return false;
+          IndexColorModel icm = (IndexColorModel)cm;
+          int[] lut = new int[1 << bits];
+          for(int i=0; i<Math.min(lut.length, icm.getMapSize()); i++)
+               lut[i] = icm.getRGB(i) & 0xffffff;
+          DataBufferByte db = (DataBufferByte)r.getDataBuffer();
+          byte[] src = db.getData();
+          int ss = sm.getScanlineStride();
+          int base = db.getOffset() - r.getSampleModelTranslateY() * ss;
+          int bit0 = sm.getDataBitOffset() - r.getSampleModelTranslateX() * bits;
+          final int mask = (1 << bits) - 1;
+          final int w = img.getWidth();
+          final int h = img.getHeight();
+          int k = 0;
+          for(int y=0; y<h; y++) {
+               final int p = base + y * ss;
+               for(int x=0, b=bit0; x<w; x++, b+=bits)
+                    dst[k++] = lut[(src[p + (b >> 3)] >> (8 - bits - (b & 7))) & mask];
+          }
+          return true;
+     }
+
+}
@@ -0,0 +1,328 @@
+package edu.emory.cellbio.svg;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Rewrite an SVG file as a stream of XML events, without building
+ * a DOM of the whole document.
+ *
+ * <p> The input is read twice. The first pass collects only the
+ * {@code clipPath} elements. The second pass copies every event to the
+ * output, keeping a skeleton of the current element's ancestors, with
+ * their {@code transform} attributes, so image placement can still be
+ * calculated in document space. Each {@code image} element is built as a
+ * small stand-alone DOM element, processed the same way as in
+ * {@link EmbedAndCropProcessor#processDocument}, and written back out. Memory use depends
+ * on the largest image, not on the size of the document.
+ *
+ * <p> When image jobs are run on worker threads, events following a pending
+ * image are held back until that image is finished, so elements are still
+ * written in document order.
+ *
+ * @author Benjamin Nanes
+ */
+class StreamingSvgRewriter {
+
+     // -- Fields --
+
+     private final EmbedAndCropProcessor eac;
+     private final int threads;
+
+     private final XMLInputFactory xif = XMLInputFactory.newInstance();
+     private final XMLOutputFactory xof = XMLOutputFactory.newInstance();
+     private final XMLEventFactory xef = XMLEventFactory.newInstance();
+
+     /** Owner of skeleton and clipPath elements */
+     private Document scratch;
+     /** clipPath elements, by id */
+     private final Map<String, Element> clips = new HashMap<String, Element>();
+
+     // -- Constructors --
+
+     /**
+      * @param eac Processes the image elements
+      * @param threads Worker threads for image jobs; 1 processes images serially
+      */
+     StreamingSvgRewriter(EmbedAndCropProcessor eac, int threads) {
+          this.eac = eac;
+          this.threads = threads;
+     }
+
+     // -- Methods --
+
+     /**
+      * Rewrite an SVG file, embedding and cropping its images
+      * @param input The SVG file
+      * @param basePath Directory that linked images are relative to
+      * @param os Destination for the rewritten SVG; flushed, but not closed
+      */
+     void rewrite(File input, String basePath, OutputStream os) throws EmbedAndCropException {
+          try {
+               scratch = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+          } catch(Exception e) { throw new EmbedAndCropException("Can't deal with XML: " + e.getMessage()); }
+          clips.clear();
+          long[] m = Metrics.mark();
+          collectClipPaths(input);
+          Metrics.add(Metrics.CLIP, m);
+          ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+          try {
+               copyEvents(input, basePath, os, pool);
+          } finally {
+               if(pool != null)
+                    pool.shutdownNow();
+          }
+     }
+
+     // -- Helper methods --
+
+     /** First pass: build each clipPath subtree as a DOM element */
+     private void collectClipPaths(File input) throws EmbedAndCropException {
+          InputStream is = null;
+          try {
+               is = new BufferedInputStream(new FileInputStream(input));
+               XMLEventReader r = xif.createXMLEventReader(is);
+               while(r.hasNext()) {
+                    XMLEvent e = r.nextEvent();
+                    if(e.isStartElement() && e.asStartElement().getName().getLocalPart().equals("clipPath")) {
+                         Element clip = readSubtree(r, e.asStartElement());
+                         if(!clips.containsKey(clip.getAttribute("id")))
+                              clips.put(clip.getAttribute("id"), clip); // The first, as in the DOM
+                    }
+               }
+               r.close();
+          } catch(Throwable t) {
+               throw new EmbedAndCropException("Can't read file: " + t.getMessage());
+          } finally {
+               closeQuietly(is);
+          }
+     }
+
+     /** Build an element and its descendants from the reader, consuming the matching end element */
+     private Element readSubtree(XMLEventReader r, StartElement start) throws Exception {
+          Element root = toElement(start, true);
+          Element current = root;
+          while(current != null) {
+               XMLEvent e = r.nextEvent();
+               if(e.isStartElement()) {
+                    Element child = toElement(e.asStartElement(), true);
+                    current.appendChild(child);
+                    current = child;
+               } else if(e.isEndElement()) {
+                    current = current == root ? null : (Element)current.getParentNode();
+               }
+          }
+          return root;
+     }
+
+     /** Second pass: copy events to the output, rewriting image elements */
+     private void copyEvents(File input, String basePath, OutputStream os, ExecutorService pool) throws EmbedAndCropException {
+          InputStream is = null;
+          try {
+               is = new BufferedInputStream(new FileInputStream(input));
+               XMLEventReader r = xif.createXMLEventReader(is);
+               XMLEventWriter w = null;
+               Node parent = scratch;
+               TransformCache transforms = new TransformCache();
+               ArrayDeque<Object> pending = new ArrayDeque<Object>();
+               int pendingJobs = 0;
+               while(r.hasNext()) {
+                    XMLEvent e = r.nextEvent();
+                    if(w == null) {
+                         String enc = "UTF-8";
+                         if(e.isStartDocument() && ((StartDocument)e).encodingSet())
+                              enc = ((StartDocument)e).getCharacterEncodingScheme();
+                         w = xof.createXMLEventWriter(os, enc);
+                    }
+                    if(e.isStartElement() && e.asStartElement().getName().getLocalPart().equals("image")) {
+                         StartElement se = e.asStartElement();
+                         Element img = toElement(se, true);
+                         parent.appendChild(img);
+                         System.err.println("## Working on image " + img.getAttribute("id"));
+                         if(eac.isMask(img)) {
+                              parent.removeChild(img);
+                              skipSubtree(r);
+                              continue;
+                         }
+                         eac.removeMask(img);
+                         String clipId = eac.getClipId(img);
+                         EmbedAndCropProcessor.ImageJob job = eac.prepareImg(img, clipId == null ? null : clips.get(clipId),
+                                 basePath, transforms, null);
+                         PendingImage pi = new PendingImage(se, img);
+                         if(pool == null) {
+                              eac.applyImgData(img, job.call());
+                              w.add(pi.toEvent());
+                         } else {
+                              pi.result = pool.submit(job);
+                              pending.add(pi);
+                              pendingJobs++;
+                              if(pendingJobs > 2 * threads)
+                                   pendingJobs -= flush(pending, w, 1);
+                         }
+                         parent = img;
+                         continue;
+                    }
+                    if(e.isStartElement()) {
+                         Element sk = toElement(e.asStartElement(), false);
+                         parent.appendChild(sk);
+                         parent = sk;
+                    } else if(e.isEndElement()) {
+                         Node up = parent.getParentNode();
+                         up.removeChild(parent);
+                         parent = up;
+                    }
+                    if(pending.isEmpty())
+                         w.add(e);
+                    else
+                         pending.add(e);
+               }
+               flush(pending, w, Integer.MAX_VALUE);
+               r.close();
+               if(w != null) {
+                    w.flush();
+                    w.close();
+               }
+               os.flush();
+          } catch(EmbedAndCropException e) {
+               throw e;
+          } catch(RuntimeException e) {
+               throw e;
+          } catch(Throwable t) {
+               throw new EmbedAndCropException("XML rewrite error: " + t);
+          } finally {
+               closeQuietly(is);
+          }
+     }
+
+     /**
+      * Write out pending events, waiting for image jobs as needed
+      * @param n Stop after this many image jobs have been written
+      * @return The number of image jobs written
+      */
+     private int flush(ArrayDeque<Object> pending, XMLEventWriter w, int n) throws Exception {
+          int done = 0;
+          while(!pending.isEmpty()) {
+               Object o = pending.peek();
+               if(o instanceof PendingImage) {
+                    if(done >= n)
+                         break;
+                    PendingImage pi = (PendingImage)o;
+                    eac.applyImgData(pi.img, eac.awaitJob(pi.result));
+                    w.add(pi.toEvent());
+                    done++;
+               } else {
+                    w.add((XMLEvent)o);
+               }
+               pending.poll();
+          }
+          return done;
+     }
+
+     /** Skip past the end of the current element */
+     private void skipSubtree(XMLEventReader r) throws Exception {
+          int depth = 1;
+          while(depth > 0) {
+               XMLEvent e = r.nextEvent();
+               if(e.isStartElement())
+                    depth++;
+               else if(e.isEndElement())
+                    depth--;
+          }
+     }
+
+     /**
+      * Create a DOM element from a start element event
+      * @param allAttributes Copy all attributes, or only {@code transform} for skeleton elements
+      */
+     private Element toElement(StartElement se, boolean allAttributes) {
+          Element el = scratch.createElement(qualifiedName(se.getName()));
+          Iterator<?> it = se.getAttributes();
+          while(it.hasNext()) {
+               Attribute a = (Attribute)it.next();
+               String name = qualifiedName(a.getName());
+               if(allAttributes || name.equals("transform"))
+                    el.setAttribute(name, a.getValue());
+          }
+          return el;
+     }
+
+     private static String qualifiedName(QName q) {
+          return q.getPrefix() == null || q.getPrefix().isEmpty()
+                  ? q.getLocalPart() : q.getPrefix() + ":" + q.getLocalPart();
+     }
+
+     private static void closeQuietly(InputStream is) {
+          if(is == null)
+               return;
+          try { is.close(); }
+          catch(Exception e) { }
+     }
+
+     // -- Helper classes --
+
+     /** An image element waiting to be written */
+     private class PendingImage {
+
+          private final StartElement start;
+          private final Element img;
+          private Future<EmbedAndCropProcessor.EncodedImage> result;
+
+          PendingImage(StartElement start, Element img) {
+               this.start = start;
+               this.img = img;
+          }
+
+          /** Build the start element event from the processed element's attributes */
+          XMLEvent toEvent() {
+               NamespaceContext nc = start.getNamespaceContext();
+               List<Attribute> attrs = new ArrayList<Attribute>();
+               NamedNodeMap nnm = img.getAttributes();
+               for(int i=0; i<nnm.getLength(); i++) {
+                    Node a = nnm.item(i);
+                    String name = a.getNodeName();
+                    int colon = name.indexOf(':');
+                    if(colon < 0) {
+                         attrs.add(xef.createAttribute(name, a.getNodeValue()));
+                    } else {
+                         String prefix = name.substring(0, colon);
+                         String uri = nc.getNamespaceURI(prefix);
+                         if(uri == null)
+                              uri = prefix.equals("xlink") ? "http://www.w3.org/1999/xlink" : "";
+                         attrs.add(xef.createAttribute(prefix, uri, name.substring(colon + 1), a.getNodeValue()));
+                    }
+               }
+               QName q = start.getName();
+               return xef.createStartElement(q.getPrefix(), q.getNamespaceURI(), q.getLocalPart(),
+                       attrs.iterator(), start.getNamespaces(), nc);
+          }
+     }
+
+}
@@ -0,0 +1,281 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Vector;
+
+/**
+ * An RGB image produced a strip of rows at a time, for images too large
+ * to hold in memory.
+ *
+ * <p> Rows come from a chain of {@link Rows} stages, e.g. decoding,
+ * resampling and cropping, each of which pulls rows from the one before
+ * it as needed, so only a few rows of each stage are held at once.
+ * Tiles are full-width strips of {@link #STRIP} rows. Strips are meant to
+ * be read from top to bottom, as image writers do; reading a strip
+ * above the current one starts the chain over from the first row.
+ *
+ * <p> Time spent producing strips is recorded as decoding. Since strips
+ * are produced while the image is encoded, it is also included in the
+ * encoding time.
+ *
+ * <p> Pixels are packed {@code int} RGB, as in {@code TYPE_INT_RGB}, or
+ * for {@link #isGray gray} images, 8-bit gray, as in
+ * {@code TYPE_BYTE_GRAY}, so they are encoded with one channel.
+ * Errors reading the source are thrown as {@link UncheckedIOException}.
+ *
+ * @author Benjamin Nanes
+ */
+public class StripImage implements RenderedImage, Closeable {
+
+     // -- Fields --
+
+     /** Rows per strip */
+     static final int STRIP = 64;
+
+     private static final ColorModel RGB = new DirectColorModel(24, 0xff0000, 0xff00, 0xff, 0);
+     private static final ColorModel GRAY = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+             new int[] {8}, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+     private final Rows.Source source;
+     private final int width;
+     private final int height;
+     private final boolean gray;
+     private Rows rows = null;
+     private Raster strip = null;
+     private int nextStrip = 0;
+
+     // -- Constructors --
+
+     /** @param source Creates the chain of stages producing the rows */
+     public StripImage(Rows.Source source) throws IOException {
+          this.source = source;
+          rows = source.open();
+          width = rows.getWidth();
+          height = rows.getHeight();
+          gray = rows.isGray();
+     }
+
+     // -- Methods --
+
+     /** Are all the pixels gray, i.e., is R = G = B for every pixel? */
+     public boolean isGray() {
+          return gray;
+     }
+
+     /**
+      * Produce all the strips at once, as a {@code TYPE_INT_RGB} image,
+      * or a {@code TYPE_BYTE_GRAY} image if it's gray
+      */
+     public BufferedImage toBufferedImage() {
+          BufferedImage img = new BufferedImage(width, height,
+                  gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+          copyData(img.getRaster());
+          return img;
+     }
+
+     /** Release the source of the rows */
+     @Override
+     public void close() throws IOException {
+          strip = null;
+          if(rows != null)
+               rows.close();
+          rows = null;
+     }
+
+     @Override
+     public Raster getTile(int tileX, int tileY) {
+          if(tileX != 0 || tileY < 0 || tileY >= getNumYTiles())
+               throw new IllegalArgumentException("No such tile: " + tileX + ", " + tileY);
+          try {
+               if(tileY < nextStrip - 1) {
+                    close();
+                    rows = source.open();
+                    nextStrip = 0;
+               }
+               while(nextStrip <= tileY)
+                    strip = readStrip(nextStrip++);
+          } catch(IOException e) {
+               throw new UncheckedIOException(e);
+          }
+          return strip;
+     }
+
+     @Override
+     public Raster getData() {
+          return getData(new Rectangle(width, height));
+     }
+
+     @Override
+     public Raster getData(Rectangle rect) {
+          SampleModel sm = getColorModel().createCompatibleSampleModel(rect.width, rect.height);
+          WritableRaster r = Raster.createWritableRaster(sm, rect.getLocation());
+          return copyData(r);
+     }
+
+     @Override
+     public WritableRaster copyData(WritableRaster r) {
+          if(r == null)
+               r = getColorModel().createCompatibleWritableRaster(width, height);
+          Rectangle rect = r.getBounds().intersection(new Rectangle(width, height));
+          if(rect.isEmpty())
+               return r;
+          Object row = null;
+          for(int ty=rect.y / STRIP; ty<=(rect.y + rect.height - 1) / STRIP; ty++) {
+               Raster t = getTile(0, ty);
+               int y0 = Math.max(rect.y, t.getMinY());
+               int y1 = Math.min(rect.y + rect.height, t.getMinY() + t.getHeight());
+               for(int y=y0; y<y1; y++) {
+                    row = t.getDataElements(rect.x, y, rect.width, 1, row);
+                    r.setDataElements(rect.x, y, rect.width, 1, row);
+               }
+          }
+          return r;
+     }
+
+     @Override public Vector<RenderedImage> getSources() { return null; }
+     @Override public Object getProperty(String name) { return java.awt.Image.UndefinedProperty; }
+     @Override public String[] getPropertyNames() { return null; }
+     @Override public ColorModel getColorModel() { return gray ? GRAY : RGB; }
+     @Override public SampleModel getSampleModel() { return getColorModel().createCompatibleSampleModel(width, STRIP); }
+     @Override public int getWidth() { return width; }
+     @Override public int getHeight() { return height; }
+     @Override public int getMinX() { return 0; }
+     @Override public int getMinY() { return 0; }
+     @Override public int getNumXTiles() { return 1; }
+     @Override public int getNumYTiles() { return (height + STRIP - 1) / STRIP; }
+     @Override public int getMinTileX() { return 0; }
+     @Override public int getMinTileY() { return 0; }
+     @Override public int getTileWidth() { return width; }
+     @Override public int getTileHeight() { return STRIP; }
+     @Override public int getTileGridXOffset() { return 0; }
+     @Override public int getTileGridYOffset() { return 0; }
+
+     /** Rows of an image region, as a stage */
+     static Rows crop(Rows src, Rectangle region) {
+          return new CropRows(src, region);
+     }
+
+     // -- Helper methods --
+
+     private Raster readStrip(int ty) throws IOException {
+          long[] m = Metrics.mark();
+          int y0 = ty * STRIP;
+          int h = Math.min(STRIP, height - y0);
+          int[] row = new int[width];
+          Raster r;
+          if(gray) {
+               byte[] data = new byte[width * h];
+               for(int y=0, k=0; y<h; y++) {
+                    rows.read(row);
+                    for(int x=0; x<width; x++)
+                         data[k++] = (byte)row[x];
+               }
+               r = Raster.createInterleavedRaster(new DataBufferByte(data, data.length),
+                       width, h, width, 1, new int[] {0}, new Point(0, y0));
+          } else {
+               int[] data = new int[width * h];
+               for(int y=0; y<h; y++) {
+                    rows.read(row);
+                    System.arraycopy(row, 0, data, y * width, width);
+               }
+               SampleModel sm = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, h,
+                       ((DirectColorModel)RGB).getMasks());
+               r = Raster.createRaster(sm, new DataBufferInt(data, data.length), new Point(0, y0));
+          }
+          Metrics.add(Metrics.DECODE, m);
+          return r;
+     }
+
+     // -- Helper classes --
+
+     /**
+      * A stage producing the rows of an image in order, from top to bottom.
+      * Stages that read another stage close it when they are closed.
+      */
+     public abstract static class Rows implements Closeable {
+
+          private final int width;
+          private final int height;
+
+          protected Rows(int width, int height) {
+               this.width = width;
+               this.height = height;
+          }
+
+          public int getWidth() { return width; }
+
+          public int getHeight() { return height; }
+
+          /** Are all the pixels gray? Stages that don't mix channels pass this on. */
+          public boolean isGray() { return false; }
+
+          /**
+           * Read the next row
+           * @param row Receives the packed RGB pixels; at least {@link #getWidth} long
+           */
+          public abstract void read(int[] row) throws IOException;
+
+          @Override
+          public void close() throws IOException { }
+
+          /** Creates a chain of stages, starting from the first row */
+          public interface Source {
+               Rows open() throws IOException;
+          }
+     }
+
+     /** A rectangle of the rows of another stage */
+     private static class CropRows extends Rows {
+
+          private final Rows src;
+          private final Rectangle region;
+          private final int[] buf;
+          private int y = 0;
+
+          CropRows(Rows src, Rectangle region) {
+               super(region.width, region.height);
+               this.src = src;
+               this.region = region;
+               buf = new int[src.getWidth()];
+          }
+
+          @Override
+          public boolean isGray() {
+               return src.isGray();
+          }
+
+          @Override
+          public void read(int[] row) throws IOException {
+               if(y == 0)
+                    for(; y<region.y; y++)
+                         src.read(buf);
+               src.read(buf);
+               y++;
+               System.arraycopy(buf, region.x, row, 0, region.width);
+          }
+
+          @Override
+          public void close() throws IOException {
+               src.close();
+          }
+     }
+
+}
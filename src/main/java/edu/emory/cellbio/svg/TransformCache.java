@@ -0,0 +1,122 @@
+package edu.emory.cellbio.svg;
+
+import java.awt.geom.AffineTransform;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Parsed SVG transforms, cached per node.
+ *
+ * <p> Each element's {@code transform} attribute is parsed once, and the
+ * cumulative transform from the element's coordinate system to document
+ * space is cached. Images that share ancestors therefore share the work of
+ * composing the ancestors' transforms. Nodes are held weakly, so entries
+ * for elements that are no longer referenced can be collected.
+ *
+ * <p> Transform attributes are assumed not to change after they are read.
+ *
+ * @author Benjamin Nanes
+ */
+public class TransformCache {
+
+     // -- Fields --
+
+     private final Map<Node, AffineTransform> cumulative = new WeakHashMap<Node, AffineTransform>();
+
+     // -- Methods --
+
+     /**
+      * Get the transform from the coordinate system of a node to document space,
+      * including the node's own {@code transform} attribute.
+      * The returned transform is shared and must not be modified.
+      */
+     public AffineTransform toDocumentSpace(Node n) {
+          AffineTransform at = cumulative.get(n);
+          if(at != null)
+               return at;
+          Node parent = n.getParentNode();
+          at = parent == null ? new AffineTransform() : new AffineTransform(toDocumentSpace(parent));
+          if(n.getNodeType() == Node.ELEMENT_NODE)
+               at.concatenate(parseTransform(((Element)n).getAttribute("transform")));
+          cumulative.put(n, at);
+          return at;
+     }
+
+     /**
+      * Parse a transform attribute.
+      * Operations are applied to points in the order they are listed.
+      * @param transform The transform attribute value
+      * @return The equivalent transform; identity if {@code transform} is empty
+      */
+     public static AffineTransform parseTransform(String transform) {
+          AffineTransform at = new AffineTransform();
+          if(transform == null || transform.equals(""))
+               return at;
+          transform = transform.trim();
+          String[] tList = transform.split("\\s");
+          for(int i=0; i<tList.length; i++) {
+               String t = tList[i].trim();
+               AffineTransform op = null;
+
+               if(t.startsWith("matrix(")) {
+                    String[] u = args(t);
+                    op = new AffineTransform(
+                         Double.parseDouble(u[0]), Double.parseDouble(u[1]),
+                         Double.parseDouble(u[2]), Double.parseDouble(u[3]),
+                         Double.parseDouble(u[4]), Double.parseDouble(u[5]));
+               }
+
+               else if(t.startsWith("translate(")) {
+                    String[] u = args(t);
+                    double tx = Double.parseDouble(u[0]);
+                    double ty = u.length > 1 ? Double.parseDouble(u[1]) : 0;
+                    op = AffineTransform.getTranslateInstance(tx, ty);
+               }
+
+               else if(t.startsWith("scale(")) {
+                    String[] u = args(t);
+                    double sx = Double.parseDouble(u[0]);
+                    double sy = u.length > 1 ? Double.parseDouble(u[1]) : sx;
+                    op = AffineTransform.getScaleInstance(sx, sy);
+               }
+
+               else if(t.startsWith("rotate(")) {
+                    String[] u = args(t);
+                    double a = Double.parseDouble(u[0]) * Math.PI / 180;
+                    if(u.length == 1)
+                         op = AffineTransform.getRotateInstance(a);
+                    else if(u.length == 3) {
+                         double cx = Double.parseDouble(u[1]);
+                         double cy = Double.parseDouble(u[2]);
+                         op = AffineTransform.getTranslateInstance(cx, cy);
+                         op.preConcatenate(AffineTransform.getRotateInstance(a));
+                         op.preConcatenate(AffineTransform.getTranslateInstance(-cx, -cy));
+                    }
+               }
+
+               else if(t.startsWith("skewX(")) {
+                    double a = Double.parseDouble(args(t)[0]) * Math.PI / 180;
+                    op = AffineTransform.getShearInstance(Math.tan(a), 0);
+               }
+
+               else if(t.startsWith("skewY(")) {
+                    double a = Double.parseDouble(args(t)[0]) * Math.PI / 180;
+                    op = AffineTransform.getShearInstance(0, Math.tan(a));
+               }
+
+               if(op != null)
+                    at.preConcatenate(op);
+          }
+          return at;
+     }
+
+     // -- Helper methods --
+
+     /** Split the comma-separated arguments of a transform operation */
+     private static String[] args(String t) {
+          return t.substring(t.indexOf("(") + 1, t.lastIndexOf(")")).split(",");
+     }
+
+}